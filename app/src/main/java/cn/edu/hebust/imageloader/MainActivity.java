@@ -14,6 +14,7 @@ import android.widget.GridView;
 import android.widget.ImageView;
 
 import cn.edu.hebust.library.ImageLoader;
+import cn.edu.hebust.library.ListPrefetcher;
 
 public class MainActivity extends AppCompatActivity {
 
@@ -33,11 +34,15 @@ public class MainActivity extends AppCompatActivity {
         display.getMetrics(metrics);
         int screenWidth = metrics.widthPixels;
         mImageWidth = (screenWidth - 60) / 3;
-        mGdContent.setAdapter(new ImageAdapter());
+        ImageAdapter adapter = new ImageAdapter();
+        mGdContent.setAdapter(adapter);
+        // 预取即将滑入屏幕的图片
+        mGdContent.setOnScrollListener(new ListPrefetcher(ImageLoader.getInstance(this), adapter,
+                mImageWidth, mImageWidth));
     }
 
 
-    private class ImageAdapter extends BaseAdapter {
+    private class ImageAdapter extends BaseAdapter implements ListPrefetcher.UriProvider {
 
         private String[] mUris = new String[]{
                 "http://b.hiphotos.baidu.com/zhidao/pic/item/a6efce1b9d16fdfafee0cfb5b68f8c5495ee7bd8.jpg",
@@ -93,6 +98,11 @@ public class MainActivity extends AppCompatActivity {
             return position;
         }
 
+        @Override
+        public String getImageUri(int position) {
+            return mUris[position];
+        }
+
         @Override
         public View getView(int position, View convertView, ViewGroup parent) {
             LayoutInflater inflater = LayoutInflater.from(MainActivity.this);
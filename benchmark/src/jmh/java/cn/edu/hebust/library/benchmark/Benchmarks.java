@@ -0,0 +1,80 @@
+package cn.edu.hebust.library.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import cn.edu.hebust.library.DiskLruCache;
+import cn.edu.hebust.library.KeyHasher;
+
+/**
+ * Fixtures shared by the benchmarks.
+ */
+final class Benchmarks {
+
+    // 远大于测试数据, 不会触发淘汰
+    static final long UNBOUNDED_SIZE = 1L << 40;
+
+    private Benchmarks() {
+    }
+
+    /**
+     * Returns {@code count} uris shaped like the ones the sample app loads.
+     */
+    static String[] uris(int count) {
+        String[] uris = new String[count];
+        for (int i = 0; i < count; i++) {
+            uris[i] = "http://img.example.com/photos/2016/11/" + i + "/thumbnail_480x320.jpg";
+        }
+        return uris;
+    }
+
+    /**
+     * Returns the cache keys ImageLoader derives for {@link #uris(int)}.
+     */
+    static String[] keys(int count) {
+        KeyHasher hasher = new KeyHasher(KeyHasher.Algorithm.MD5, 0);
+        String[] uris = uris(count);
+        String[] keys = new String[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = hasher.hashKey(uris[i]);
+        }
+        return keys;
+    }
+
+    static File createTempDirectory(String prefix) throws IOException {
+        File directory = File.createTempFile(prefix, "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("can't create " + directory);
+        }
+        return directory;
+    }
+
+    /**
+     * Writes {@code value} under {@code key} and commits it.
+     */
+    static void put(DiskLruCache cache, String key, byte[] value) throws IOException {
+        DiskLruCache.Editor editor = cache.edit(key);
+        if (editor == null) {
+            // another thread is writing the same key
+            return;
+        }
+        OutputStream out = editor.newOutputStream(0);
+        try {
+            out.write(value);
+        } finally {
+            out.close();
+        }
+        editor.commit();
+    }
+
+    static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
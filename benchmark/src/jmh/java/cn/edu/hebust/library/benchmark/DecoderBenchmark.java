@@ -0,0 +1,100 @@
+package cn.edu.hebust.library.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import cn.edu.hebust.library.Decoders;
+import cn.edu.hebust.library.ImageIODecoder;
+import cn.edu.hebust.library.ImageInfo;
+
+/**
+ * The sampled decode pipeline on {@link ImageIODecoder}: bounds probe,
+ * sample size, decode. gc.alloc.rate.norm shows the memory a decode costs
+ * at each target size.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class DecoderBenchmark {
+
+    private static final int IMAGE_WIDTH = 2048;
+    private static final int IMAGE_HEIGHT = 1536;
+
+    @Param({"jpeg", "png"})
+    public String format;
+
+    // 0为原尺寸
+    @Param({"0", "480", "120"})
+    public int reqSize;
+
+    private final ImageIODecoder mDecoder = new ImageIODecoder();
+    private ByteBuffer mData;
+    private ImageInfo mInfo;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        BufferedImage image = new BufferedImage(IMAGE_WIDTH, IMAGE_HEIGHT, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, Color.ORANGE, IMAGE_WIDTH, IMAGE_HEIGHT, Color.BLUE));
+        g.fillRect(0, 0, IMAGE_WIDTH, IMAGE_HEIGHT);
+        g.dispose();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!ImageIO.write(image, format, out)) {
+            throw new IOException("no writer for " + format);
+        }
+        mData = ByteBuffer.wrap(out.toByteArray());
+        mInfo = mDecoder.decodeBounds(mData);
+    }
+
+    @Benchmark
+    public ImageInfo decodeBounds() throws IOException {
+        return mDecoder.decodeBounds(mData);
+    }
+
+    /**
+     * Bounds from the header alone, see ImageHeaderParser.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public ImageInfo probe() throws IOException {
+        return Decoders.probe(mDecoder, mData);
+    }
+
+    @Benchmark
+    public BufferedImage decodeSampled() throws IOException {
+        return Decoders.decodeSampled(mDecoder, mData, reqSize, reqSize);
+    }
+
+    /**
+     * A quarter of the image, as a tile of a large image is decoded.
+     */
+    @Benchmark
+    public BufferedImage decodeRegion() throws IOException {
+        int sampleSize = Decoders.calculateInSampleSize(IMAGE_WIDTH / 2, IMAGE_HEIGHT / 2, reqSize, reqSize);
+        return mDecoder.decodeRegion(mData, mInfo, 0, 0, IMAGE_WIDTH / 2, IMAGE_HEIGHT / 2, sampleSize);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int calculateInSampleSize() {
+        return Decoders.calculateInSampleSize(IMAGE_WIDTH, IMAGE_HEIGHT, reqSize, reqSize);
+    }
+}
@@ -0,0 +1,104 @@
+package cn.edu.hebust.library.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import cn.edu.hebust.library.DiskLruCache;
+
+/**
+ * Disk-Cache hits and writes of random keys, on one thread and on four
+ * threads contending for the cache.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class DiskLruCacheBenchmark {
+
+    private static final int VALUE_SIZE = 4 * 1024;
+
+    @Param({"100", "1000", "10000"})
+    public int entryCount;
+
+    @Param({"1", "4"})
+    public int shardCount;
+
+    @Param({"TEXT", "BINARY"})
+    public DiskLruCache.JournalFormat journalFormat;
+
+    private File mDirectory;
+    private DiskLruCache mCache;
+    private String[] mKeys;
+    private byte[] mValue;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mDirectory = Benchmarks.createTempDirectory("disk-lru-cache");
+        mCache = DiskLruCache.open(mDirectory, 1, 1, Benchmarks.UNBOUNDED_SIZE,
+                new DiskLruCache.Options().setShardCount(shardCount).setJournalFormat(journalFormat));
+        mKeys = Benchmarks.keys(entryCount);
+        mValue = new byte[VALUE_SIZE];
+        for (String key : mKeys) {
+            Benchmarks.put(mCache, key, mValue);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        mCache.close();
+        Benchmarks.deleteRecursively(mDirectory);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public int get() throws IOException {
+        return readRandom();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int get4Threads() throws IOException {
+        return readRandom();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void editCommit() throws IOException {
+        Benchmarks.put(mCache, randomKey(), mValue);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void editCommit4Threads() throws IOException {
+        Benchmarks.put(mCache, randomKey(), mValue);
+    }
+
+    private int readRandom() throws IOException {
+        DiskLruCache.Snapshot snapshot = mCache.get(randomKey());
+        if (snapshot == null) {
+            return -1;
+        }
+        try {
+            return snapshot.getInputStream(0).read();
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    private String randomKey() {
+        return mKeys[ThreadLocalRandom.current().nextInt(mKeys.length)];
+    }
+}
@@ -0,0 +1,35 @@
+package cn.edu.hebust.library.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+
+import cn.edu.hebust.library.DiskLruCache;
+
+final class JournalFixtures {
+
+    private static final byte[] VALUE = new byte[1];
+
+    private JournalFixtures() {
+    }
+
+    /**
+     * Creates a closed cache of {@code entryCount} one byte entries, each of
+     * which has been read once.
+     */
+    static void populate(File directory, DiskLruCache.JournalFormat journalFormat, int entryCount)
+            throws IOException {
+        DiskLruCache cache = DiskLruCache.open(directory, 1, 1, Benchmarks.UNBOUNDED_SIZE,
+                new DiskLruCache.Options().setJournalFormat(journalFormat));
+        String[] keys = Benchmarks.keys(entryCount);
+        for (String key : keys) {
+            Benchmarks.put(cache, key, VALUE);
+        }
+        for (String key : keys) {
+            DiskLruCache.Snapshot snapshot = cache.get(key);
+            if (snapshot != null) {
+                snapshot.close();
+            }
+        }
+        cache.close();
+    }
+}
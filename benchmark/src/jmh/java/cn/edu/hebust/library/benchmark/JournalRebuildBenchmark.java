@@ -0,0 +1,64 @@
+package cn.edu.hebust.library.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import cn.edu.hebust.library.DiskLruCache;
+
+/**
+ * {@link DiskLruCache#open} of a cache whose journal is in the other format,
+ * which replays the journal and rebuilds it in {@link #journalFormat}.
+ * The journal is migrated back before every invocation, outside the measurement.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class JournalRebuildBenchmark {
+
+    @Param({"1000", "10000"})
+    public int entryCount;
+
+    @Param({"TEXT", "BINARY"})
+    public DiskLruCache.JournalFormat journalFormat;
+
+    private File mDirectory;
+    private DiskLruCache.JournalFormat mOtherFormat;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mOtherFormat = journalFormat == DiskLruCache.JournalFormat.TEXT
+                ? DiskLruCache.JournalFormat.BINARY : DiskLruCache.JournalFormat.TEXT;
+        mDirectory = Benchmarks.createTempDirectory("journal-rebuild");
+        JournalFixtures.populate(mDirectory, mOtherFormat, entryCount);
+    }
+
+    @Setup(Level.Invocation)
+    public void migrateBack() throws IOException {
+        DiskLruCache.open(mDirectory, 1, 1, Benchmarks.UNBOUNDED_SIZE,
+                new DiskLruCache.Options().setJournalFormat(mOtherFormat)).close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Benchmarks.deleteRecursively(mDirectory);
+    }
+
+    @Benchmark
+    public void rebuild() throws IOException {
+        DiskLruCache cache = DiskLruCache.open(mDirectory, 1, 1, Benchmarks.UNBOUNDED_SIZE,
+                new DiskLruCache.Options().setJournalFormat(journalFormat));
+        cache.close();
+    }
+}
@@ -0,0 +1,55 @@
+package cn.edu.hebust.library.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import cn.edu.hebust.library.DiskLruCache;
+
+/**
+ * {@link DiskLruCache#open} of an existing cache, which replays the journal.
+ * The journal holds a READ record for every entry besides its DIRTY and
+ * CLEAN records, like one after a session of scrolling.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class JournalReplayBenchmark {
+
+    @Param({"1000", "10000"})
+    public int entryCount;
+
+    @Param({"TEXT", "BINARY"})
+    public DiskLruCache.JournalFormat journalFormat;
+
+    private File mDirectory;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mDirectory = Benchmarks.createTempDirectory("journal-replay");
+        JournalFixtures.populate(mDirectory, journalFormat, entryCount);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Benchmarks.deleteRecursively(mDirectory);
+    }
+
+    @Benchmark
+    public void open() throws IOException {
+        DiskLruCache cache = DiskLruCache.open(mDirectory, 1, 1, Benchmarks.UNBOUNDED_SIZE,
+                new DiskLruCache.Options().setJournalFormat(journalFormat));
+        cache.close();
+    }
+}
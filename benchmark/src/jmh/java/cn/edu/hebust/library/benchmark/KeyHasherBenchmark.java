@@ -0,0 +1,91 @@
+package cn.edu.hebust.library.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+import cn.edu.hebust.library.KeyHasher;
+
+/**
+ * Cache key derivation. Run with the gc profiler (the default of this
+ * module), gc.alloc.rate.norm is the number of bytes allocated per key.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class KeyHasherBenchmark {
+
+    // 一屏左右的列表项, 重复绑定时命中最近使用的key
+    private static final int VISIBLE_COUNT = 64;
+
+    @State(Scope.Thread)
+    public static class Uris {
+        final String[] mUris = Benchmarks.uris(4096);
+        int mNext;
+
+        String next() {
+            return mUris[mNext++ & (mUris.length - 1)];
+        }
+
+        String nextVisible() {
+            return mUris[mNext++ & (VISIBLE_COUNT - 1)];
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Hashers {
+        @Param({"MD5", "MURMUR3_128"})
+        public KeyHasher.Algorithm algorithm;
+
+        KeyHasher mUncached;
+        KeyHasher mRecent;
+
+        @Setup
+        public void setUp() {
+            mUncached = new KeyHasher(algorithm, 0);
+            mRecent = new KeyHasher(algorithm, 128);
+        }
+    }
+
+    /**
+     * Every uri is new to the hasher.
+     */
+    @Benchmark
+    public String hash(Hashers hashers, Uris uris) {
+        return hashers.mUncached.hashKey(uris.next());
+    }
+
+    /**
+     * Rebinding the visible items, answered from the recent keys.
+     */
+    @Benchmark
+    public String hashRecent(Hashers hashers, Uris uris) {
+        return hashers.mRecent.hashKey(uris.nextVisible());
+    }
+
+    /**
+     * The hashKeyFromUri of earlier versions, for comparison.
+     */
+    @Benchmark
+    public String legacyMd5(Uris uris) throws NoSuchAlgorithmException {
+        MessageDigest messageDigest = MessageDigest.getInstance("MD5");
+        messageDigest.update(uris.next().getBytes());
+        StringBuilder sb = new StringBuilder();
+        for (byte aByte : messageDigest.digest()) {
+            String hex = Integer.toHexString(0xFF & aByte);
+            if (hex.length() == 1) {
+                sb.append("0");
+            }
+            sb.append(hex);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,90 @@
+package cn.edu.hebust.library;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+/**
+ * {@link Decoder} on javax.imageio, so the decoding strategy can run on a
+ * plain JVM. Decodes JPEG, PNG, GIF and BMP with the JDK's readers.
+ */
+public class ImageIODecoder implements Decoder<BufferedImage> {
+
+    @Override
+    public ImageInfo decodeBounds(ByteBuffer data) throws IOException {
+        ImageInputStream in = open(data);
+        try {
+            ImageReader reader = findReader(in);
+            if (reader == null) {
+                return null;
+            }
+            try {
+                String[] mimeTypes = reader.getOriginatingProvider().getMIMETypes();
+                String mimeType = mimeTypes != null && mimeTypes.length > 0 ? mimeTypes[0] : null;
+                return new ImageInfo(reader.getWidth(0), reader.getHeight(0), mimeType);
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public BufferedImage decode(ByteBuffer data, ImageInfo info, int sampleSize) throws IOException {
+        return read(data, null, sampleSize);
+    }
+
+    @Override
+    public BufferedImage decodeRegion(ByteBuffer data, ImageInfo info, int left, int top, int right, int bottom,
+                                      int sampleSize) throws IOException {
+        return read(data, new Rectangle(left, top, right - left, bottom - top), sampleSize);
+    }
+
+    private static BufferedImage read(ByteBuffer data, Rectangle region, int sampleSize) throws IOException {
+        ImageInputStream in = open(data);
+        try {
+            ImageReader reader = findReader(in);
+            if (reader == null) {
+                return null;
+            }
+            try {
+                ImageReadParam param = reader.getDefaultReadParam();
+                if (region != null) {
+                    param.setSourceRegion(region);
+                }
+                if (sampleSize > 1) {
+                    param.setSourceSubsampling(sampleSize, sampleSize, 0, 0);
+                }
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static ImageInputStream open(ByteBuffer data) {
+        // 不使用ImageIO的磁盘缓存, 数据本身已在内存中
+        return new MemoryCacheImageInputStream(new ByteBufferInputStream(data));
+    }
+
+    private static ImageReader findReader(ImageInputStream in) {
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+        if (!readers.hasNext()) {
+            return null;
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(in, true, true);
+        return reader;
+    }
+}
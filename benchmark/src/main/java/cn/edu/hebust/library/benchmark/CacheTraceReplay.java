@@ -0,0 +1,239 @@
+package cn.edu.hebust.library.benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import cn.edu.hebust.library.EvictionPolicy;
+import cn.edu.hebust.library.MemoryCache;
+
+/**
+ * Replays uri access traces through {@link MemoryCache} with every
+ * {@link EvictionPolicy.Type} and prints the hit ratios, run with
+ * ./gradlew :benchmark:replay [-Ptrace=file].
+ * <p>
+ * A trace file has one access per line, "uri" or "uri bytes" with the size
+ * of the decoded bitmap; lines without a size count as 1. Without a file two
+ * synthetic traces are replayed: a Zipf distribution, and thumbnails of a
+ * home screen shown between scrolls through a long gallery.
+ * <p>
+ * Each trace is replayed twice: with plain gets and puts, and with the most
+ * recently shown images on screen, pinned in the cache like ImageLoader pins
+ * the bitmaps views show.
+ */
+public final class CacheTraceReplay {
+
+    // 缓存大小, 占trace中所有不同图片总大小的比例
+    private static final int[] CACHE_PERCENTS = {1, 2, 5, 10, 25};
+    // 同时显示在屏幕上(被固定)的图片数, 0表示不固定
+    private static final int[] SCREEN_COUNTS = {0, 12};
+
+    private CacheTraceReplay() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        List<Trace> traces = new ArrayList<Trace>();
+        if (args.length > 0) {
+            for (String path : args) {
+                traces.add(Trace.read(new File(path)));
+            }
+        } else {
+            traces.add(Trace.zipf(4096, 200000, 0.9, 42));
+            traces.add(Trace.homeAndGallery(64, 2000, 40, 42));
+        }
+        for (Trace trace : traces) {
+            for (int screenCount : SCREEN_COUNTS) {
+                System.out.println(trace + (screenCount > 0 ? ", " + screenCount + " on screen" : ""));
+                StringBuilder header = new StringBuilder(String.format("%8s", "cache"));
+                for (EvictionPolicy.Type type : EvictionPolicy.Type.values()) {
+                    header.append(String.format("%10s", type));
+                }
+                System.out.println(header);
+                for (int percent : CACHE_PERCENTS) {
+                    int maxSize = (int) Math.min(Integer.MAX_VALUE,
+                            Math.max(1, trace.mDistinctSize * percent / 100));
+                    StringBuilder row = new StringBuilder(String.format("%7d%%", percent));
+                    for (EvictionPolicy.Type type : EvictionPolicy.Type.values()) {
+                        row.append(String.format("%9.2f%%", 100 * replay(trace, maxSize, type, screenCount)));
+                    }
+                    System.out.println(row);
+                }
+                System.out.println();
+            }
+        }
+    }
+
+    /**
+     * Returns the hit ratio of a cache of {@code maxSize} which loads every
+     * miss, as ImageLoader puts every decoded bitmap. The last
+     * {@code screenCount} distinct images are on screen: they are pinned
+     * until they scroll off, lookups of them hit like those ImageLoader's
+     * active tier serves.
+     */
+    static double replay(Trace trace, int maxSize, EvictionPolicy.Type type, int screenCount) {
+        MemoryCache<String, Integer> cache = new MemoryCache<String, Integer>(maxSize,
+                EvictionPolicy.<String>create(type)) {
+            @Override
+            protected int sizeOf(String key, Integer value) {
+                return value;
+            }
+        };
+        // 屏幕上的图片, 最早显示的在前
+        LinkedHashMap<String, Integer> screen = new LinkedHashMap<String, Integer>(0, 0.75f, true);
+        int hitCount = 0;
+        for (int i = 0; i < trace.mKeys.length; i++) {
+            String key = trace.mKeys[i];
+            Integer value = cache.get(key);
+            if (screen.get(key) != null) {
+                hitCount++;
+                continue;
+            }
+            if (value != null) {
+                hitCount++;
+            }
+            if (screenCount == 0) {
+                if (value == null) {
+                    cache.put(key, trace.mSizes[i]);
+                }
+                continue;
+            }
+            if (value == null) {
+                value = trace.mSizes[i];
+                cache.putPinned(key, value);
+            } else {
+                cache.pin(key);
+            }
+            screen.put(key, value);
+            if (screen.size() > screenCount) {
+                Iterator<Map.Entry<String, Integer>> eldest = screen.entrySet().iterator();
+                Map.Entry<String, Integer> entry = eldest.next();
+                eldest.remove();
+                cache.unpin(entry.getKey(), entry.getValue());
+            }
+        }
+        return (double) hitCount / trace.mKeys.length;
+    }
+
+    static final class Trace {
+        final String mName;
+        final String[] mKeys;
+        final int[] mSizes;
+        final long mDistinctSize;
+
+        Trace(String name, List<String> keys, List<Integer> sizes) {
+            mName = name;
+            mKeys = keys.toArray(new String[keys.size()]);
+            mSizes = new int[sizes.size()];
+            Map<String, Integer> distinct = new HashMap<String, Integer>();
+            for (int i = 0; i < mSizes.length; i++) {
+                mSizes[i] = sizes.get(i);
+                distinct.put(mKeys[i], mSizes[i]);
+            }
+            long distinctSize = 0;
+            for (int size : distinct.values()) {
+                distinctSize += size;
+            }
+            mDistinctSize = distinctSize;
+        }
+
+        static Trace read(File file) throws IOException {
+            List<String> keys = new ArrayList<String>();
+            List<Integer> sizes = new ArrayList<Integer>();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#")) {
+                        continue;
+                    }
+                    int space = line.lastIndexOf(' ');
+                    int size = 1;
+                    if (space != -1) {
+                        try {
+                            size = Integer.parseInt(line.substring(space + 1));
+                            line = line.substring(0, space).trim();
+                        } catch (NumberFormatException e) {
+                            // uri中含有空格, 没有大小
+                        }
+                    }
+                    keys.add(line);
+                    sizes.add(size);
+                }
+            } finally {
+                reader.close();
+            }
+            return new Trace(file.getName(), keys, sizes);
+        }
+
+        /**
+         * {@code count} accesses to {@code uriCount} uris of equal size, the
+         * n-th most popular one accessed with a probability proportional to 1/n^s.
+         */
+        static Trace zipf(int uriCount, int count, double s, long seed) {
+            double[] cumulative = new double[uriCount];
+            double sum = 0;
+            for (int i = 0; i < uriCount; i++) {
+                sum += 1 / Math.pow(i + 1, s);
+                cumulative[i] = sum;
+            }
+            Random random = new Random(seed);
+            List<String> keys = new ArrayList<String>(count);
+            List<Integer> sizes = new ArrayList<Integer>(count);
+            for (int i = 0; i < count; i++) {
+                int index = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+                keys.add(uri(index < 0 ? -index - 1 : index));
+                sizes.add(1);
+            }
+            return new Trace("zipf(" + uriCount + ", s=" + s + ")", keys, sizes);
+        }
+
+        /**
+         * {@code homeCount} thumbnails shown again and again, between scrolls
+         * through a gallery of {@code galleryCount} larger images which are
+         * mostly seen once, {@code scrollCount} scrolls of random length.
+         */
+        static Trace homeAndGallery(int homeCount, int galleryCount, int scrollCount, long seed) {
+            Random random = new Random(seed);
+            List<String> keys = new ArrayList<String>();
+            List<Integer> sizes = new ArrayList<Integer>();
+            // 缩略图200x200, 相册中的图片400x400, ARGB_8888
+            int thumbnailSize = 200 * 200 * 4;
+            int gallerySize = 400 * 400 * 4;
+            for (int scroll = 0; scroll < scrollCount; scroll++) {
+                for (int pass = 0; pass < 3; pass++) {
+                    for (int i = 0; i < homeCount; i++) {
+                        keys.add(uri(i));
+                        sizes.add(thumbnailSize);
+                    }
+                }
+                int start = random.nextInt(galleryCount);
+                int length = 200 + random.nextInt(800);
+                for (int i = 0; i < length; i++) {
+                    keys.add(uri(homeCount + (start + i) % galleryCount));
+                    sizes.add(gallerySize);
+                }
+            }
+            return new Trace("home(" + homeCount + ") + gallery(" + galleryCount + ")", keys, sizes);
+        }
+
+        private static String uri(int index) {
+            return "http://example.com/images/" + index + ".jpg";
+        }
+
+        @Override
+        public String toString() {
+            return mName + ": " + mKeys.length + " accesses, " + mDistinctSize + " distinct size";
+        }
+    }
+}
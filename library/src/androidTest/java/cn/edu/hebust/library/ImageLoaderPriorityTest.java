@@ -0,0 +1,176 @@
+package cn.edu.hebust.library;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.widget.ImageView;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * A view bound to an image whose prefetch is already past the disk stage
+ * waits for that load, which then must neither keep the prefetch priority
+ * nor expire while it queues behind visible work. Instrumentation test,
+ * which will execute on an Android device.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ImageLoaderPriorityTest {
+
+    // 解码这张图片时占住唯一的解码线程, 比PREFETCH的等待上限更久
+    private static final String SLOW = "slow";
+    private static final long SLOW_DECODE_MILLIS = 4000;
+
+    private final CountDownLatch mPrefetchDownloading = new CountDownLatch(1);
+    private final CountDownLatch mReleasePrefetch = new CountDownLatch(1);
+    private final CountDownLatch mSlowDecoding = new CountDownLatch(1);
+
+    @Test
+    public void bindJoinsPrefetchPastDiskStage() throws Exception {
+        Context context = InstrumentationRegistry.getTargetContext();
+        // a fresh uri per run, so neither cache has it
+        long run = System.nanoTime();
+        final String prefetched = "http://test/prefetched/" + run;
+        final String slow = "http://test/" + SLOW + "/" + run;
+        final ImageLoader loader = ImageLoader.getInstance(context, new ImageLoader.Config()
+                .setDecodePoolSize(1)
+                .setNetworkFetcher(new Fetcher(prefetched))
+                .setDecoder(new SlowDecoder()));
+
+        loader.prefetch(prefetched, 100, 100, ImageLoader.Priority.PREFETCH);
+        assertTrue(mPrefetchDownloading.await(5, TimeUnit.SECONDS));
+
+        final ImageView prefetchedView = new ImageView(context);
+        final ImageView slowView = new ImageView(context);
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                loader.bindBmp(prefetched, prefetchedView, 100, 100);
+                loader.bindBmp(slow, slowView, 100, 100);
+            }
+        });
+        assertTrue(mSlowDecoding.await(5, TimeUnit.SECONDS));
+        // the prefetch queues for the decode stage behind the slow image
+        mReleasePrefetch.countDown();
+
+        assertTrue(awaitBitmap(slowView, SLOW_DECODE_MILLIS + 5000));
+        assertTrue("view joined to the prefetch wasn't bound", awaitBitmap(prefetchedView, 5000));
+    }
+
+    private static boolean awaitBitmap(final ImageView imageView, long timeoutMillis) throws Exception {
+        final boolean[] bound = new boolean[1];
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (System.currentTimeMillis() < deadline) {
+            runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    bound[0] = imageView.getDrawable() != null;
+                }
+            });
+            if (bound[0]) {
+                return true;
+            }
+            Thread.sleep(50);
+        }
+        return false;
+    }
+
+    private static void runOnMainSync(Runnable runnable) {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(runnable);
+    }
+
+    /**
+     * Serves the uri itself as the image, holding the download of
+     * {@code blockedUri} until the test releases it.
+     */
+    private class Fetcher implements NetworkFetcher {
+        private final String mBlockedUri;
+
+        Fetcher(String blockedUri) {
+            mBlockedUri = blockedUri;
+        }
+
+        @Override
+        public Response fetch(String uri, Map<String, String> headers) throws IOException {
+            if (uri.equals(mBlockedUri)) {
+                mPrefetchDownloading.countDown();
+                try {
+                    mReleasePrefetch.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            final byte[] body = uri.getBytes("US-ASCII");
+            return new Response() {
+                private final InputStream mBody = new ByteArrayInputStream(body);
+
+                @Override
+                public int getCode() {
+                    return 200;
+                }
+
+                @Override
+                public String getHeader(String name) {
+                    return null;
+                }
+
+                @Override
+                public long getContentLength() {
+                    return body.length;
+                }
+
+                @Override
+                public InputStream getBody() {
+                    return mBody;
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        }
+    }
+
+    /**
+     * Decodes any bytes into a small bitmap, slowly if they name the slow image.
+     */
+    private class SlowDecoder implements Decoder<Bitmap> {
+        @Override
+        public ImageInfo decodeBounds(ByteBuffer data) {
+            return new ImageInfo(100, 100, "image/png");
+        }
+
+        @Override
+        public Bitmap decode(ByteBuffer data, ImageInfo info, int sampleSize) {
+            byte[] bytes = new byte[data.remaining()];
+            data.duplicate().get(bytes);
+            if (new String(bytes).contains(SLOW)) {
+                mSlowDecoding.countDown();
+                try {
+                    Thread.sleep(SLOW_DECODE_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return Bitmap.createBitmap(info.getWidth() / sampleSize, info.getHeight() / sampleSize,
+                    Bitmap.Config.ARGB_8888);
+        }
+
+        @Override
+        public Bitmap decodeRegion(ByteBuffer data, ImageInfo info, int left, int top, int right,
+                                   int bottom, int sampleSize) {
+            return decode(data, info, sampleSize);
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package cn.edu.hebust.library;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 可复用Bitmap的缓存池, 通过{@link BitmapFactory.Options#inBitmap}复用其内存,
+ * 避免滑动时频繁分配Bitmap引起的GC.
+ * <p>
+ * Bitmaps are bucketed by config and allocation size. Since KitKat a decode
+ * can reuse any bitmap of the same config which is large enough; before
+ * KitKat the size has to match exactly and the image must not be sampled.
+ * The pool drops its oldest bitmaps when it grows beyond its max size.
+ */
+public class BitmapPool {
+
+    private static final String TAG = "BitmapPool";
+
+    // 复用比目标大太多的Bitmap会浪费内存
+    private static final int MAX_SIZE_MULTIPLE = 4;
+
+    private final int mMaxSize;
+    private int mSize;
+    private final Map<Bitmap.Config, TreeMap<Integer, LinkedList<Bitmap>>> mBuckets =
+            new HashMap<Bitmap.Config, TreeMap<Integer, LinkedList<Bitmap>>>();
+    // 入池顺序, 超出容量时最先放入的先被丢弃
+    private final LinkedHashSet<Bitmap> mOrder = new LinkedHashSet<Bitmap>();
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mPutCount;
+    private int mEvictionCount;
+
+    /**
+     * @param maxSize the maximum number of bytes of all pooled bitmaps.
+     */
+    public BitmapPool(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Offers {@code bitmap} for reuse. The caller must not use it afterwards.
+     * Immutable, recycled and oversized bitmaps are ignored.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || !bitmap.isMutable() || bitmap.isRecycled()
+                || bitmap.getConfig() == null || mOrder.contains(bitmap)) {
+            return;
+        }
+        int size = getSize(bitmap);
+        if (size > mMaxSize) {
+            return;
+        }
+        getBucket(bitmap.getConfig(), size).addLast(bitmap);
+        mOrder.add(bitmap);
+        mSize += size;
+        mPutCount++;
+        trimToSize(mMaxSize);
+    }
+
+    /**
+     * Takes a pooled bitmap which a decode of {@code options} can reuse through
+     * {@link BitmapFactory.Options#inBitmap}, or returns null. The options must
+     * hold the bounds of the image and the sample size.
+     */
+    public synchronized Bitmap get(BitmapFactory.Options options) {
+        Bitmap.Config config = options.inPreferredConfig != null
+                ? options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+        TreeMap<Integer, LinkedList<Bitmap>> sizes = mBuckets.get(config);
+        Bitmap bitmap = null;
+        if (sizes != null && options.outWidth > 0 && options.outHeight > 0) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                bitmap = getLargeEnough(sizes, config, options);
+            } else if (options.inSampleSize <= 1) {
+                bitmap = getExactly(sizes, config, options.outWidth, options.outHeight);
+            }
+        }
+        if (bitmap == null) {
+            mMissCount++;
+        } else {
+            mHitCount++;
+        }
+        return bitmap;
+    }
+
+    private Bitmap getLargeEnough(TreeMap<Integer, LinkedList<Bitmap>> sizes, Bitmap.Config config,
+                                  BitmapFactory.Options options) {
+        int sampleSize = Math.max(1, options.inSampleSize);
+        // round up, the decoder may round either way
+        int width = (options.outWidth + sampleSize - 1) / sampleSize;
+        int height = (options.outHeight + sampleSize - 1) / sampleSize;
+        int size = width * height * getBytesPerPixel(config);
+        Map.Entry<Integer, LinkedList<Bitmap>> bucket = sizes.ceilingEntry(size);
+        if (bucket == null || bucket.getKey() > size * MAX_SIZE_MULTIPLE) {
+            return null;
+        }
+        Bitmap bitmap = bucket.getValue().removeLast();
+        removed(sizes, bucket.getKey(), bitmap);
+        return bitmap;
+    }
+
+    private Bitmap getExactly(TreeMap<Integer, LinkedList<Bitmap>> sizes, Bitmap.Config config,
+                              int width, int height) {
+        int size = width * height * getBytesPerPixel(config);
+        LinkedList<Bitmap> bucket = sizes.get(size);
+        if (bucket == null) {
+            return null;
+        }
+        for (Iterator<Bitmap> i = bucket.descendingIterator(); i.hasNext(); ) {
+            Bitmap bitmap = i.next();
+            if (bitmap.getWidth() == width && bitmap.getHeight() == height) {
+                i.remove();
+                removed(sizes, size, bitmap);
+                return bitmap;
+            }
+        }
+        return null;
+    }
+
+    private void removed(TreeMap<Integer, LinkedList<Bitmap>> sizes, int size, Bitmap bitmap) {
+        if (sizes.get(size).isEmpty()) {
+            sizes.remove(size);
+        }
+        mOrder.remove(bitmap);
+        mSize -= getSize(bitmap);
+    }
+
+    /**
+     * Drops the oldest bitmaps until the pool holds at most {@code maxSize} bytes.
+     */
+    public synchronized void trimToSize(int maxSize) {
+        Iterator<Bitmap> i = mOrder.iterator();
+        while (mSize > maxSize && i.hasNext()) {
+            Bitmap bitmap = i.next();
+            i.remove();
+            int size = getSize(bitmap);
+            TreeMap<Integer, LinkedList<Bitmap>> sizes = mBuckets.get(bitmap.getConfig());
+            LinkedList<Bitmap> bucket = sizes.get(size);
+            bucket.remove(bitmap);
+            if (bucket.isEmpty()) {
+                sizes.remove(size);
+            }
+            mSize -= size;
+            mEvictionCount++;
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Drops all pooled bitmaps.
+     */
+    public void clear() {
+        trimToSize(0);
+    }
+
+    private LinkedList<Bitmap> getBucket(Bitmap.Config config, int size) {
+        TreeMap<Integer, LinkedList<Bitmap>> sizes = mBuckets.get(config);
+        if (sizes == null) {
+            sizes = new TreeMap<Integer, LinkedList<Bitmap>>();
+            mBuckets.put(config, sizes);
+        }
+        LinkedList<Bitmap> bucket = sizes.get(size);
+        if (bucket == null) {
+            bucket = new LinkedList<Bitmap>();
+            sizes.put(size, bucket);
+        }
+        return bucket;
+    }
+
+    /**
+     * Returns the number of bytes a decode can reuse from {@code bitmap}.
+     */
+    static int getSize(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public int maxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * Returns the number of decodes which reused a pooled bitmap.
+     */
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * Returns the number of decodes which found no reusable bitmap.
+     */
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+
+    public synchronized int putCount() {
+        return mPutCount;
+    }
+
+    /**
+     * Returns the number of pooled bitmaps which were recycled to make room.
+     */
+    public synchronized int evictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        int accesses = mHitCount + mMissCount;
+        int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+        return TAG + "[size=" + mSize + ",maxSize=" + mMaxSize + ",hits=" + mHitCount
+                + ",misses=" + mMissCount + ",hitRate=" + hitPercent + "%]";
+    }
+}
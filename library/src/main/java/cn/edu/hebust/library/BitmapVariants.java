@@ -0,0 +1,133 @@
+package cn.edu.hebust.library;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 记录Memory-Cache中同一张图片以不同尺寸解码出的Bitmap.
+ * <p>
+ * Memory-Cache keys are "cacheKey_WxH_config", made by {@link #variantKey}.
+ * This index finds, for a requested size, the smallest cached variant which
+ * is at least that large, or which is the image at full resolution.
+ */
+final class BitmapVariants {
+
+    private final Map<String, List<Variant>> mVariantsByKey = new HashMap<String, List<Variant>>();
+    private final Map<String, Variant> mVariants = new HashMap<String, Variant>();
+
+    /**
+     * Returns the Memory-Cache key of a {@code width x height} bitmap of the
+     * image {@code key} decoded with {@code config}.
+     */
+    static String variantKey(String key, int width, int height, String config) {
+        return key + '_' + width + 'x' + height + '_' + config;
+    }
+
+    /**
+     * Returns true if an image decoded for {@code reqWidth x reqHeight} came
+     * out smaller than that, so it wasn't downsampled at all.
+     */
+    static boolean isFullSize(int width, int height, int reqWidth, int reqHeight) {
+        return reqWidth <= 0 || reqHeight <= 0 || width < reqWidth || height < reqHeight;
+    }
+
+    /**
+     * Records a variant of the image {@code key}.
+     *
+     * @param fullSize true if the variant is the image at its original size,
+     *                 it then satisfies requests of any size.
+     */
+    synchronized void add(String key, String variantKey, int width, int height, boolean fullSize) {
+        Variant variant = mVariants.get(variantKey);
+        if (variant != null) {
+            variant.mFullSize |= fullSize;
+            return;
+        }
+        variant = new Variant(key, variantKey, width, height, fullSize);
+        mVariants.put(variantKey, variant);
+        List<Variant> variants = mVariantsByKey.get(key);
+        if (variants == null) {
+            variants = new ArrayList<Variant>(2);
+            mVariantsByKey.put(key, variants);
+        }
+        variants.add(variant);
+    }
+
+    synchronized void remove(String variantKey) {
+        Variant variant = mVariants.remove(variantKey);
+        if (variant == null) {
+            return;
+        }
+        List<Variant> variants = mVariantsByKey.get(variant.mKey);
+        variants.remove(variant);
+        if (variants.isEmpty()) {
+            mVariantsByKey.remove(variant.mKey);
+        }
+    }
+
+    /**
+     * Forgets every variant of the image {@code key}.
+     *
+     * @return the variant keys it had.
+     */
+    synchronized List<String> removeAll(String key) {
+        List<Variant> variants = mVariantsByKey.remove(key);
+        List<String> variantKeys = new ArrayList<String>(variants != null ? variants.size() : 0);
+        if (variants != null) {
+            for (Variant variant : variants) {
+                mVariants.remove(variant.mVariantKey);
+                variantKeys.add(variant.mVariantKey);
+            }
+        }
+        return variantKeys;
+    }
+
+    /**
+     * Returns the key of the smallest variant of the image {@code key} which
+     * can be shown at {@code reqWidth x reqHeight} without upscaling, or null.
+     * A request of size 0 asks for the full size image.
+     */
+    synchronized String find(String key, int reqWidth, int reqHeight) {
+        List<Variant> variants = mVariantsByKey.get(key);
+        if (variants == null) {
+            return null;
+        }
+        Variant best = null;
+        for (Variant variant : variants) {
+            if (variant.satisfies(reqWidth, reqHeight)
+                    && (best == null || variant.pixels() < best.pixels())) {
+                best = variant;
+            }
+        }
+        return best != null ? best.mVariantKey : null;
+    }
+
+    private static final class Variant {
+        private final String mKey;
+        private final String mVariantKey;
+        private final int mWidth;
+        private final int mHeight;
+        private boolean mFullSize;
+
+        Variant(String key, String variantKey, int width, int height, boolean fullSize) {
+            mKey = key;
+            mVariantKey = variantKey;
+            mWidth = width;
+            mHeight = height;
+            mFullSize = fullSize;
+        }
+
+        boolean satisfies(int reqWidth, int reqHeight) {
+            if (mFullSize) {
+                return true;
+            }
+            return reqWidth > 0 && reqHeight > 0 && mWidth >= reqWidth && mHeight >= reqHeight;
+        }
+
+        long pixels() {
+            return (long) mWidth * mHeight;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package cn.edu.hebust.library;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An InputStream over the remaining bytes of a {@link ByteBuffer}.
+ * Reads copy in bulk and mark/reset is free, so a decoder can read a
+ * memory-mapped file twice without opening it again.
+ */
+final class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer mBuffer;
+    private int mMark;
+
+    /**
+     * @param buffer the bytes from its position to its limit are read, the
+     *               buffer itself isn't modified.
+     */
+    ByteBufferInputStream(ByteBuffer buffer) {
+        mBuffer = buffer.duplicate();
+        mMark = mBuffer.position();
+    }
+
+    @Override
+    public int read() {
+        if (!mBuffer.hasRemaining()) {
+            return -1;
+        }
+        return mBuffer.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+        if (!mBuffer.hasRemaining()) {
+            return -1;
+        }
+        int count = Math.min(len, mBuffer.remaining());
+        mBuffer.get(b, off, count);
+        return count;
+    }
+
+    @Override
+    public long skip(long n) {
+        if (n <= 0) {
+            return 0;
+        }
+        int count = (int) Math.min(n, mBuffer.remaining());
+        mBuffer.position(mBuffer.position() + count);
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return mBuffer.remaining();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+        mMark = mBuffer.position();
+    }
+
+    @Override
+    public synchronized void reset() {
+        mBuffer.position(mMark);
+    }
+}
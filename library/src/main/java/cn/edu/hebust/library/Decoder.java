@@ -0,0 +1,42 @@
+package cn.edu.hebust.library;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes encoded images into images of type {@code T}, Bitmap on Android.
+ * Implementations read the bytes from the position to the limit of the
+ * buffers they are given and leave the buffers unmodified, so a buffer can
+ * be probed and then decoded.
+ *
+ * @see ImageResizer the BitmapFactory implementation
+ * @see Decoders#decodeSampled
+ */
+public interface Decoder<T> {
+
+    /**
+     * Reads the dimensions and type of the image without decoding its pixels.
+     *
+     * @return null if the bytes aren't an image this decoder understands.
+     */
+    ImageInfo decodeBounds(ByteBuffer data) throws IOException;
+
+    /**
+     * Decodes the whole image.
+     *
+     * @param info       what {@link #decodeBounds} returned for {@code data}.
+     * @param sampleSize a power of 2, every {@code sampleSize}th pixel is decoded.
+     * @return null if the image couldn't be decoded.
+     */
+    T decode(ByteBuffer data, ImageInfo info, int sampleSize) throws IOException;
+
+    /**
+     * Decodes the rectangle from ({@code left}, {@code top}) inclusive to
+     * ({@code right}, {@code bottom}) exclusive, in pixels of the full image.
+     *
+     * @param sampleSize a power of 2, every {@code sampleSize}th pixel is decoded.
+     * @return null if the region couldn't be decoded.
+     */
+    T decodeRegion(ByteBuffer data, ImageInfo info, int left, int top, int right, int bottom,
+                   int sampleSize) throws IOException;
+}
@@ -0,0 +1,76 @@
+package cn.edu.hebust.library;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decoding strategy shared by every {@link Decoder}, free of Android so it
+ * can be tested and benchmarked on a plain JVM.
+ */
+public final class Decoders {
+
+    private Decoders() {
+    }
+
+    /**
+     * Probes the bounds of the image, then decodes it sampled down to about
+     * {@code reqWidth x reqHeight}, see {@link #calculateInSampleSize}.
+     *
+     * @return null if the bytes aren't an image the decoder understands.
+     */
+    public static <T> T decodeSampled(Decoder<T> decoder, ByteBuffer data, int reqWidth, int reqHeight)
+            throws IOException {
+        return decodeSampled(decoder, data, null, reqWidth, reqHeight);
+    }
+
+    /**
+     * Decodes the image sampled down to about {@code reqWidth x reqHeight}.
+     *
+     * @param info the bounds of the image if they are known already, else
+     *             null to {@link #probe} them.
+     * @return null if the bytes aren't an image the decoder understands.
+     */
+    public static <T> T decodeSampled(Decoder<T> decoder, ByteBuffer data, ImageInfo info,
+                                      int reqWidth, int reqHeight) throws IOException {
+        if (info == null) {
+            info = probe(decoder, data);
+            if (info == null) {
+                return null;
+            }
+        }
+        int sampleSize = calculateInSampleSize(info.getWidth(), info.getHeight(), reqWidth, reqHeight);
+        return decoder.decode(data, info, sampleSize);
+    }
+
+    /**
+     * Reads the bounds of the image from its header, or asks the decoder if
+     * {@link ImageHeaderParser} doesn't know the format.
+     *
+     * @return null if the bytes aren't an image the decoder understands.
+     */
+    public static ImageInfo probe(Decoder<?> decoder, ByteBuffer data) throws IOException {
+        ImageInfo info = ImageHeaderParser.parse(data);
+        return info != null ? info : decoder.decodeBounds(data);
+    }
+
+    /**
+     * 计算Bitmap的采样率: 选用最大的2的幂, 使采样后的图片仍不小于请求的尺寸
+     *
+     * @return 1 if {@code reqWidth} or {@code reqHeight} is 0.
+     */
+    public static int calculateInSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        if (reqHeight == 0 || reqWidth == 0) {
+            return 1;
+        }
+        int sampleSize = 1;
+        if (width > reqWidth || height > reqHeight) {
+            int halfWidth = width / 2;
+            int halfHeight = height / 2;
+
+            while ((halfHeight / sampleSize) >= reqHeight && (halfWidth / sampleSize) >= reqWidth) {
+                sampleSize *= 2;
+            }
+        }
+        return sampleSize;
+    }
+}
@@ -17,6 +17,7 @@
 package cn.edu.hebust.library;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.Closeable;
 import java.io.EOFException;
@@ -26,6 +27,7 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.FilterOutputStream;
+import java.io.Flushable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -35,12 +37,15 @@ import java.io.Reader;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.lang.reflect.Array;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.TreeSet;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -96,17 +101,26 @@ import java.util.concurrent.TimeUnit;
  * an error occurs while writing a cache value, the edit will fail silently.
  * Callers should handle other problems by catching {@code IOException} and
  * responding appropriately.
+ *
+ * <p>A cache opened with more than one shard partitions its keys across
+ * independent sub-caches stored in subdirectories. Each shard has its own
+ * journal, lock and an even part of the size budget, so operations on keys of
+ * different shards don't wait for each other.
  */
 public final class DiskLruCache implements Closeable {
     static final String JOURNAL_FILE = "journal";
     static final String JOURNAL_FILE_TMP = "journal.tmp";
+    static final String SHARD_DIRECTORY_PREFIX = "shard";
     static final String MAGIC = "libcore.io.DiskLruCache";
     static final String VERSION_1 = "1";
+    static final byte[] BINARY_MAGIC = {'D', 'L', 'R', 'U', 0, 2};
     static final long ANY_SEQUENCE_NUMBER = -1;
     private static final String CLEAN = "CLEAN";
     private static final String DIRTY = "DIRTY";
     private static final String REMOVE = "REMOVE";
     private static final String READ = "READ";
+    private static final String FREQ = "FREQ";
+    private static final String PARTIAL = "PARTIAL";
 
     private static final Charset UTF_8 = Charset.forName("UTF-8");
     private static final int IO_BUFFER_SIZE = 8 * 1024;
@@ -144,11 +158,34 @@ public final class DiskLruCache implements Closeable {
      *     its values.
      *   o READ lines track accesses for LRU.
      *   o REMOVE lines track entries that have been deleted.
+     *   o FREQ lines, only written by caches with a frequency based
+     *     {@link Eviction}, carry the access count of a clean entry, e.g.
+     *     "FREQ 3400330d1dfc7f3f7f4b8d4d803dfcf6 12". A rebuilt journal keeps
+     *     the counts in them, later READ lines add to the count.
+     *   o PARTIAL lines track an edit which ended with
+     *     {@link Editor#abortKeepingPartial}: its temporary files stay on disk
+     *     for the next edit of the entry to resume. They count towards the
+     *     size of the cache and are evicted before any readable entry. Only
+     *     binary journals and those with FREQ lines have them, so a text
+     *     journal with {@link Eviction#LRU} stays readable by earlier
+     *     versions; there a partial edit is left as a DIRTY line and only
+     *     lasts until the cache is opened again.
      *
      * The journal file is appended to as cache operations occur. The journal may
      * occasionally be compacted by dropping redundant lines. A temporary file named
      * "journal.tmp" will be used during compaction; that file should be deleted if
      * it exists when the cache is opened.
+     *
+     * A cache opened with {@link JournalFormat#BINARY} keeps the same records in
+     * a compact binary journal. Its header is the bytes "DLRU", 0 and 2, then the
+     * app version and the value count as varints. Each record starts with an
+     * opcode byte: CLEAN 1, DIRTY 2, REMOVE 3, READ 4, FREQ 5 or PARTIAL 6. If the opcode's
+     * high bit is set the key is a 32 character lowercase hex digest stored as 16
+     * raw bytes, otherwise the key is its varint byte count followed by its UTF-8
+     * bytes. CLEAN records end with the varint lengths of the values, FREQ
+     * records with the varint access count. Opening a
+     * cache reads either format and rewrites the journal if it isn't in the
+     * requested one.
      */
 
     private final File directory;
@@ -157,11 +194,36 @@ public final class DiskLruCache implements Closeable {
     private final int appVersion;
     private final long maxSize;
     private final int valueCount;
+    /** The sub-caches of a sharded cache, or null if this cache stores entries itself. */
+    private final DiskLruCache[] shards;
     private long size = 0;
-    private Writer journalWriter;
+    private final JournalFormat journalFormat;
+    private JournalWriter journalWriter;
+    /** The format of the journal read by {@link #readJournal}. */
+    private JournalFormat journalFormatOnDisk;
+    /** True if the journal ended inside a binary record, so it can't be appended to. */
+    private boolean journalTruncated;
+    /**
+     * The number of values per entry in the journal read by {@link #readJournal}.
+     * May be less than {@link #valueCount}, the entries then gain empty values.
+     */
+    private int journalValueCount;
     private final LinkedHashMap<String, Entry> lruEntries
             = new LinkedHashMap<String, Entry>(0, 0.75f, true);
     private int redundantOpCount;
+    /** The number of entries with {@link Entry#partialLengths}. */
+    private int partialCount;
+
+    private final Eviction eviction;
+    /**
+     * Readable entries by ascending eviction priority, null for
+     * {@link Eviction#LRU} which evicts in the order of {@link #lruEntries}.
+     */
+    private final TreeSet<Entry> evictionQueue;
+    /** The priority of the last evicted entry, added to the priority of accessed entries. */
+    private double inflation;
+    /** Orders entries of equal priority, the one queued earlier is evicted first. */
+    private long nextQueueOrder;
 
     /**
      * To differentiate between old and current snapshots, each entry is given
@@ -286,13 +348,112 @@ public final class DiskLruCache implements Closeable {
         }
     };
 
-    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize) {
+    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize,
+            JournalFormat journalFormat, Eviction eviction, DiskLruCache[] shards) {
         this.directory = directory;
         this.appVersion = appVersion;
         this.journalFile = new File(directory, JOURNAL_FILE);
         this.journalFileTmp = new File(directory, JOURNAL_FILE_TMP);
         this.valueCount = valueCount;
         this.maxSize = maxSize;
+        this.journalFormat = journalFormat;
+        this.eviction = eviction;
+        this.evictionQueue = eviction != Eviction.LRU && shards == null
+                ? new TreeSet<Entry>(PRIORITY_ORDER) : null;
+        this.shards = shards;
+    }
+
+    /**
+     * The encoding of the journal file.
+     */
+    public enum JournalFormat {
+        /** The line based text journal of libcore's DiskLruCache, version 1. */
+        TEXT,
+        /** A compact binary journal which is faster to replay and rebuild. */
+        BINARY
+    }
+
+    /**
+     * Which entries the cache evicts when it is over its maximum size.
+     */
+    public enum Eviction {
+        /** The least recently used entry, like libcore's DiskLruCache. */
+        LRU,
+        /**
+         * LFU with dynamic aging: the entry with the lowest access count plus
+         * the priority of the last evicted entry at the time of its last
+         * access, so entries which were popular long ago age out.
+         */
+        LFU,
+        /**
+         * Greedy-Dual-Size-Frequency: like {@link #LFU}, with the access count
+         * divided by the size of the entry. Keeps many small, often reused
+         * entries instead of a few large ones read once, which raises the hit
+         * rate but may lower the byte hit rate.
+         */
+        GDSF
+    }
+
+    /** Ascending priority, then ascending queue order. */
+    private static final Comparator<Entry> PRIORITY_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            int result = Double.compare(a.priority, b.priority);
+            if (result != 0) {
+                return result;
+            }
+            return a.queueOrder < b.queueOrder ? -1 : (a.queueOrder == b.queueOrder ? 0 : 1);
+        }
+    };
+
+    /**
+     * Optional arguments of {@link #open(File, int, int, long, Options)}.
+     */
+    public static final class Options {
+        private int shardCount = 1;
+        private JournalFormat journalFormat = JournalFormat.TEXT;
+        private Eviction eviction = Eviction.LRU;
+
+        /**
+         * Partitions the keys across {@code shardCount} sub-caches. Each shard
+         * lives in its own subdirectory and may use {@code maxSize / shardCount}
+         * bytes. Files of an unsharded cache or of a cache with another shard
+         * count are deleted when the cache is opened. Defaults to 1.
+         */
+        public Options setShardCount(int shardCount) {
+            if (shardCount <= 0) {
+                throw new IllegalArgumentException("shardCount <= 0");
+            }
+            this.shardCount = shardCount;
+            return this;
+        }
+
+        /**
+         * Sets the format the journal is written in. A journal in the other
+         * format is migrated when the cache is opened. Defaults to
+         * {@link JournalFormat#TEXT}.
+         */
+        public Options setJournalFormat(JournalFormat journalFormat) {
+            if (journalFormat == null) {
+                throw new NullPointerException("journalFormat == null");
+            }
+            this.journalFormat = journalFormat;
+            return this;
+        }
+
+        /**
+         * Sets which entries are evicted first. Access counts are kept in
+         * the journal, so a frequency based eviction continues where it left
+         * off when the cache is opened again. Defaults to {@link Eviction#LRU},
+         * whose journal earlier versions can read.
+         */
+        public Options setEviction(Eviction eviction) {
+            if (eviction == null) {
+                throw new NullPointerException("eviction == null");
+            }
+            this.eviction = eviction;
+            return this;
+        }
     }
 
     /**
@@ -302,26 +463,120 @@ public final class DiskLruCache implements Closeable {
      * @param directory a writable directory
      * @param appVersion
      * @param valueCount the number of values per cache entry. Must be positive.
+     *     A cache written with fewer values per entry is migrated, its entries
+     *     gain empty values. A cache with more values per entry is deleted.
      * @param maxSize the maximum number of bytes this cache should use to store
      * @throws java.io.IOException if reading or writing the cache directory fails
      */
     public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize)
             throws IOException {
+        return open(directory, appVersion, valueCount, maxSize, new Options());
+    }
+
+    /**
+     * Opens a cache in {@code directory} which partitions its keys across
+     * {@code shardCount} sub-caches, see {@link Options#setShardCount}.
+     *
+     * @param shardCount the number of sub-caches. A count of 1 opens an
+     *     unsharded cache.
+     * @throws java.io.IOException if reading or writing the cache directory fails
+     */
+    public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize,
+            int shardCount) throws IOException {
+        return open(directory, appVersion, valueCount, maxSize,
+                new Options().setShardCount(shardCount));
+    }
+
+    /**
+     * Opens the cache in {@code directory}, creating a cache if none exists
+     * there.
+     *
+     * @param directory a writable directory
+     * @param appVersion
+     * @param valueCount the number of values per cache entry. Must be positive.
+     *     A cache written with fewer values per entry is migrated, its entries
+     *     gain empty values. A cache with more values per entry is deleted.
+     * @param maxSize the maximum number of bytes this cache should use to store
+     * @param options sharding, journal format and eviction of the cache.
+     * @throws java.io.IOException if reading or writing the cache directory fails
+     */
+    public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize,
+            Options options) throws IOException {
         if (maxSize <= 0) {
             throw new IllegalArgumentException("maxSize <= 0");
         }
         if (valueCount <= 0) {
             throw new IllegalArgumentException("valueCount <= 0");
         }
+        int shardCount = options.shardCount;
+        if (shardCount == 1) {
+            // the shards of a previous sharded layout are no longer counted or evicted
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (file.isDirectory() && file.getName().startsWith(SHARD_DIRECTORY_PREFIX)) {
+                        deleteContents(file);
+                        deleteIfExists(file);
+                    }
+                }
+            }
+            return openShard(directory, appVersion, valueCount, maxSize, options.journalFormat,
+                    options.eviction);
+        }
+        if (maxSize < shardCount) {
+            throw new IllegalArgumentException("maxSize < shardCount");
+        }
+
+        directory.mkdirs();
+        String prefix = SHARD_DIRECTORY_PREFIX + shardCount + "-";
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.getName().startsWith(prefix)) {
+                    if (file.isDirectory()) {
+                        deleteContents(file);
+                    }
+                    deleteIfExists(file);
+                }
+            }
+        }
 
+        DiskLruCache[] shards = new DiskLruCache[shardCount];
+        try {
+            for (int i = 0; i < shardCount; i++) {
+                long shardMaxSize = maxSize / shardCount + (i < maxSize % shardCount ? 1 : 0);
+                shards[i] = openShard(new File(directory, prefix + i), appVersion, valueCount,
+                        shardMaxSize, options.journalFormat, options.eviction);
+            }
+        } catch (IOException e) {
+            for (DiskLruCache shard : shards) {
+                closeQuietly(shard);
+            }
+            throw e;
+        }
+        return new DiskLruCache(directory, appVersion, valueCount, maxSize,
+                options.journalFormat, options.eviction, shards);
+    }
+
+    /**
+     * Opens an unsharded cache in {@code directory}.
+     */
+    private static DiskLruCache openShard(File directory, int appVersion, int valueCount,
+            long maxSize, JournalFormat journalFormat, Eviction eviction) throws IOException {
         // prefer to pick up where we left off
-        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize,
+                journalFormat, eviction, null);
         if (cache.journalFile.exists()) {
             try {
                 cache.readJournal();
                 cache.processJournal();
-                cache.journalWriter = new BufferedWriter(new FileWriter(cache.journalFile, true),
-                        IO_BUFFER_SIZE);
+                if (cache.journalFormatOnDisk != journalFormat || cache.journalTruncated
+                        || cache.journalValueCount != valueCount) {
+                    // migrate to the requested format and value count
+                    cache.rebuildJournal();
+                } else {
+                    cache.journalWriter = cache.newJournalWriter(cache.journalFile, true);
+                }
                 return cache;
             } catch (IOException journalIsCorrupt) {
 //                System.logW("DiskLruCache " + directory + " is corrupt: "
@@ -332,40 +587,171 @@ public final class DiskLruCache implements Closeable {
 
         // create a new empty cache
         directory.mkdirs();
-        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, journalFormat,
+                eviction, null);
         cache.rebuildJournal();
         return cache;
     }
 
+    private DiskLruCache shardFor(String key) {
+        return shards[(key.hashCode() & Integer.MAX_VALUE) % shards.length];
+    }
+
     private void readJournal() throws IOException {
         InputStream in = new BufferedInputStream(new FileInputStream(journalFile), IO_BUFFER_SIZE);
         try {
-            String magic = readAsciiLine(in);
-            String version = readAsciiLine(in);
-            String appVersionString = readAsciiLine(in);
-            String valueCountString = readAsciiLine(in);
-            String blank = readAsciiLine(in);
-            if (!MAGIC.equals(magic)
-                    || !VERSION_1.equals(version)
-                    || !Integer.toString(appVersion).equals(appVersionString)
-                    || !Integer.toString(valueCount).equals(valueCountString)
-                    || !"".equals(blank)) {
-                throw new IOException("unexpected journal header: ["
-                        + magic + ", " + version + ", " + valueCountString + ", " + blank + "]");
-            }
-
-            while (true) {
-                try {
-                    readJournalLine(readAsciiLine(in));
-                } catch (EOFException endOfJournal) {
-                    break;
-                }
+            byte[] magic = new byte[BINARY_MAGIC.length];
+            in.mark(magic.length);
+            int count = 0;
+            int read;
+            while (count < magic.length && (read = in.read(magic, count, magic.length - count)) != -1) {
+                count += read;
+            }
+            in.reset();
+            if (Arrays.equals(magic, BINARY_MAGIC)) {
+                journalFormatOnDisk = JournalFormat.BINARY;
+                readBinaryJournal(in);
+            } else {
+                journalFormatOnDisk = JournalFormat.TEXT;
+                readTextJournal(in);
             }
         } finally {
             closeQuietly(in);
         }
     }
 
+    private void readTextJournal(InputStream in) throws IOException {
+        String magic = readAsciiLine(in);
+        String version = readAsciiLine(in);
+        String appVersionString = readAsciiLine(in);
+        String valueCountString = readAsciiLine(in);
+        String blank = readAsciiLine(in);
+        if (!MAGIC.equals(magic)
+                || !VERSION_1.equals(version)
+                || !Integer.toString(appVersion).equals(appVersionString)
+                || !isMigratableValueCount(parseValueCount(valueCountString))
+                || !"".equals(blank)) {
+            throw new IOException("unexpected journal header: ["
+                    + magic + ", " + version + ", " + valueCountString + ", " + blank + "]");
+        }
+        journalValueCount = parseValueCount(valueCountString);
+
+        while (true) {
+            try {
+                readJournalLine(readAsciiLine(in));
+            } catch (EOFException endOfJournal) {
+                break;
+            }
+        }
+    }
+
+    private void readBinaryJournal(InputStream in) throws IOException {
+        if (in.skip(BINARY_MAGIC.length) != BINARY_MAGIC.length) {
+            throw new EOFException();
+        }
+        long appVersionRead = readVarint(in);
+        long valueCountRead = readVarint(in);
+        if (appVersionRead != appVersion || !isMigratableValueCount(valueCountRead)) {
+            throw new IOException("unexpected journal header: ["
+                    + appVersionRead + ", " + valueCountRead + "]");
+        }
+        journalValueCount = (int) valueCountRead;
+
+        char[] hex = new char[32];
+        byte[] keyBytes = new byte[64];
+        while (true) {
+            int opcode = in.read();
+            if (opcode == -1) {
+                break; // a clean end of the journal
+            }
+            try {
+                String key;
+                if ((opcode & OP_DIGEST_KEY) != 0) {
+                    readFully(in, keyBytes, 16);
+                    key = digestToHex(keyBytes, hex);
+                } else {
+                    int length = (int) readVarint(in);
+                    if (length > keyBytes.length) {
+                        keyBytes = new byte[length];
+                    }
+                    readFully(in, keyBytes, length);
+                    key = new String(keyBytes, 0, length, UTF_8);
+                }
+                readJournalRecord(opcode & ~OP_DIGEST_KEY, key, in);
+            } catch (EOFException truncated) {
+                // the process died while appending this record
+                journalTruncated = true;
+                break;
+            }
+        }
+    }
+
+    private static int parseValueCount(String valueCountString) {
+        try {
+            return Integer.parseInt(valueCountString);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns true if a journal with {@code journalValueCount} values per entry
+     * can be read by this cache: entries may gain values, but never lose any.
+     */
+    private boolean isMigratableValueCount(long journalValueCount) {
+        return journalValueCount > 0 && journalValueCount <= valueCount;
+    }
+
+    private void readJournalRecord(int op, String key, InputStream in) throws IOException {
+        if (op == OP_REMOVE) {
+            lruEntries.remove(key);
+            return;
+        }
+
+        // read the whole record before touching the entry, so a record cut
+        // off by a crash leaves the entry as the previous records made it
+        long[] lengths = null;
+        long accessCount = 0;
+        if (op == OP_CLEAN) {
+            lengths = new long[journalValueCount];
+            for (int i = 0; i < journalValueCount; i++) {
+                lengths[i] = readVarint(in);
+                if (lengths[i] < 0) {
+                    throw new IOException("unexpected journal length: " + lengths[i]);
+                }
+            }
+        } else if (op == OP_FREQ) {
+            accessCount = readVarint(in);
+        }
+
+        Entry entry = lruEntries.get(key);
+        if (entry == null) {
+            entry = new Entry(key);
+            lruEntries.put(key, entry);
+        }
+
+        if (op == OP_CLEAN) {
+            System.arraycopy(lengths, 0, entry.lengths, 0, journalValueCount);
+            entry.readable = true;
+            entry.currentEditor = null;
+            entry.partialLengths = null;
+        } else if (op == OP_DIRTY) {
+            entry.currentEditor = new Editor(entry);
+            entry.partialLengths = null;
+        } else if (op == OP_PARTIAL) {
+            entry.currentEditor = null;
+            // the lengths are read from the files by processJournal()
+            entry.partialLengths = new long[valueCount];
+        } else if (op == OP_READ) {
+            // the LRU order was already updated by calling lruEntries.get()
+            entry.accessCount++;
+        } else if (op == OP_FREQ) {
+            entry.accessCount = accessCount;
+        } else {
+            throw new IOException("unexpected journal opcode: " + op);
+        }
+    }
+
     private void readJournalLine(String line) throws IOException {
         String[] parts = line.split(" ");
         if (parts.length < 2) {
@@ -384,14 +770,27 @@ public final class DiskLruCache implements Closeable {
             lruEntries.put(key, entry);
         }
 
-        if (parts[0].equals(CLEAN) && parts.length == 2 + valueCount) {
+        if (parts[0].equals(CLEAN) && parts.length == 2 + journalValueCount) {
+            entry.setLengths(copyOfRange(parts, 2, parts.length));
             entry.readable = true;
             entry.currentEditor = null;
-            entry.setLengths(copyOfRange(parts, 2, parts.length));
+            entry.partialLengths = null;
         } else if (parts[0].equals(DIRTY) && parts.length == 2) {
             entry.currentEditor = new Editor(entry);
+            entry.partialLengths = null;
+        } else if (parts[0].equals(PARTIAL) && parts.length == 2) {
+            entry.currentEditor = null;
+            // the lengths are read from the files by processJournal()
+            entry.partialLengths = new long[valueCount];
         } else if (parts[0].equals(READ) && parts.length == 2) {
-            // this work was already done by calling lruEntries.get()
+            // the LRU order was already updated by calling lruEntries.get()
+            entry.accessCount++;
+        } else if (parts[0].equals(FREQ) && parts.length == 3) {
+            try {
+                entry.accessCount = Long.parseLong(parts[2]);
+            } catch (NumberFormatException e) {
+                throw new IOException("unexpected journal line: " + line);
+            }
         } else {
             throw new IOException("unexpected journal line: " + line);
         }
@@ -399,16 +798,36 @@ public final class DiskLruCache implements Closeable {
 
     /**
      * Computes the initial size and collects garbage as a part of opening the
-     * cache. Dirty entries are assumed to be inconsistent and will be deleted.
+     * cache. Dirty entries are assumed to be inconsistent and will be deleted,
+     * partial ones are kept.
      */
     private void processJournal() throws IOException {
         deleteIfExists(journalFileTmp);
         for (Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext(); ) {
             Entry entry = i.next();
             if (entry.currentEditor == null) {
+                if (entry.partialLengths != null) {
+                    for (int t = 0; t < valueCount; t++) {
+                        entry.partialLengths[t] = entry.getDirtyFile(t).length();
+                        size += entry.partialLengths[t];
+                    }
+                    partialCount++;
+                }
+                if (!entry.readable) {
+                    // only a partial edit
+                    continue;
+                }
                 for (int t = 0; t < valueCount; t++) {
                     size += entry.lengths[t];
                 }
+                // values added since the journal was written start out empty
+                for (int t = journalValueCount; t < valueCount; t++) {
+                    File clean = entry.getCleanFile(t);
+                    if (!clean.exists() && !clean.createNewFile()) {
+                        throw new IOException("can't create " + clean);
+                    }
+                }
+                updatePriority(entry);
             } else {
                 entry.currentEditor = null;
                 for (int t = 0; t < valueCount; t++) {
@@ -429,28 +848,69 @@ public final class DiskLruCache implements Closeable {
             journalWriter.close();
         }
 
-        Writer writer = new BufferedWriter(new FileWriter(journalFileTmp), IO_BUFFER_SIZE);
-        writer.write(MAGIC);
-        writer.write("\n");
-        writer.write(VERSION_1);
-        writer.write("\n");
-        writer.write(Integer.toString(appVersion));
-        writer.write("\n");
-        writer.write(Integer.toString(valueCount));
-        writer.write("\n");
-        writer.write("\n");
-
+        JournalWriter writer = newJournalWriter(journalFileTmp, false);
         for (Entry entry : lruEntries.values()) {
             if (entry.currentEditor != null) {
-                writer.write(DIRTY + ' ' + entry.key + '\n');
-            } else {
-                writer.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+                writer.writeDirty(entry.key);
+                continue;
+            }
+            if (entry.readable) {
+                writer.writeClean(entry);
+                if (evictionQueue != null && entry.accessCount > 1) {
+                    writer.writeFreq(entry.key, entry.accessCount);
+                }
+            }
+            if (entry.partialLengths != null) {
+                if (journalsPartials()) {
+                    writer.writePartial(entry.key);
+                } else {
+                    // the partial files are deleted when the cache is opened again
+                    writer.writeDirty(entry.key);
+                }
             }
         }
 
         writer.close();
         journalFileTmp.renameTo(journalFile);
-        journalWriter = new BufferedWriter(new FileWriter(journalFile, true), IO_BUFFER_SIZE);
+        journalWriter = newJournalWriter(journalFile, true);
+    }
+
+    /**
+     * Returns true if partial edits are recorded in the journal, false for a
+     * text journal which earlier versions can read.
+     */
+    private boolean journalsPartials() {
+        return journalFormat == JournalFormat.BINARY || eviction != Eviction.LRU;
+    }
+
+    /**
+     * Returns a writer for {@code file} in this cache's journal format. A new
+     * file starts with the journal header.
+     */
+    private JournalWriter newJournalWriter(File file, boolean append) throws IOException {
+        if (journalFormat == JournalFormat.BINARY) {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(file, append),
+                    IO_BUFFER_SIZE);
+            if (!append) {
+                out.write(BINARY_MAGIC);
+                writeVarint(out, appVersion);
+                writeVarint(out, valueCount);
+            }
+            return new BinaryJournalWriter(out);
+        }
+        Writer writer = new BufferedWriter(new FileWriter(file, append), IO_BUFFER_SIZE);
+        if (!append) {
+            writer.write(MAGIC);
+            writer.write("\n");
+            writer.write(VERSION_1);
+            writer.write("\n");
+            writer.write(Integer.toString(appVersion));
+            writer.write("\n");
+            writer.write(Integer.toString(valueCount));
+            writer.write("\n");
+            writer.write("\n");
+        }
+        return new TextJournalWriter(writer);
     }
 
     private static void deleteIfExists(File file) throws IOException {
@@ -471,7 +931,14 @@ public final class DiskLruCache implements Closeable {
      * exist is not currently readable. If a value is returned, it is moved to
      * the head of the LRU queue.
      */
-    public synchronized Snapshot get(String key) throws IOException {
+    public Snapshot get(String key) throws IOException {
+        if (shards != null) {
+            return shardFor(key).get(key);
+        }
+        return getEntry(key);
+    }
+
+    private synchronized Snapshot getEntry(String key) throws IOException {
         checkNotClosed();
         validateKey(key);
         Entry entry = lruEntries.get(key);
@@ -499,7 +966,9 @@ public final class DiskLruCache implements Closeable {
         }
 
         redundantOpCount++;
-        journalWriter.append(READ + ' ' + key + '\n');
+        journalWriter.writeRead(key);
+        entry.accessCount++;
+        updatePriority(entry);
         if (journalRebuildRequired()) {
             executorService.submit(cleanupCallable);
         }
@@ -512,6 +981,9 @@ public final class DiskLruCache implements Closeable {
      * edit is in progress.
      */
     public Editor edit(String key) throws IOException {
+        if (shards != null) {
+            return shardFor(key).edit(key);
+        }
         return edit(key, ANY_SEQUENCE_NUMBER);
     }
 
@@ -532,9 +1004,18 @@ public final class DiskLruCache implements Closeable {
 
         Editor editor = new Editor(entry);
         entry.currentEditor = editor;
+        if (entry.partialLengths != null) {
+            // the editor resumes the partial values, they are its dirty files now
+            editor.partialLengths = entry.partialLengths;
+            for (long length : entry.partialLengths) {
+                size -= length;
+            }
+            entry.partialLengths = null;
+            partialCount--;
+        }
 
         // flush the journal before creating files to prevent file leaks
-        journalWriter.write(DIRTY + ' ' + key + '\n');
+        journalWriter.writeDirty(key);
         journalWriter.flush();
         return editor;
     }
@@ -559,8 +1040,17 @@ public final class DiskLruCache implements Closeable {
      * this cache. This may be greater than the max size if a background
      * deletion is pending.
      */
-    public synchronized long size() {
-        return size;
+    public long size() {
+        if (shards != null) {
+            long total = 0;
+            for (DiskLruCache shard : shards) {
+                total += shard.size();
+            }
+            return total;
+        }
+        synchronized (this) {
+            return size;
+        }
     }
 
     private synchronized void completeEdit(Editor editor, boolean success) throws IOException {
@@ -599,13 +1089,51 @@ public final class DiskLruCache implements Closeable {
         entry.currentEditor = null;
         if (entry.readable | success) {
             entry.readable = true;
-            journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+            journalWriter.writeClean(entry);
             if (success) {
                 entry.sequenceNumber = nextSequenceNumber++;
+                // the size changed
+                updatePriority(entry);
             }
         } else {
             lruEntries.remove(entry.key);
-            journalWriter.write(REMOVE + ' ' + entry.key + '\n');
+            journalWriter.writeRemove(entry.key);
+        }
+
+        if (size > maxSize || journalRebuildRequired()) {
+            executorService.submit(cleanupCallable);
+        }
+    }
+
+    /**
+     * Ends an edit without publishing it, keeping its dirty files as the
+     * partial values of the entry. An edit which wrote nothing or failed to
+     * write is aborted instead.
+     */
+    private synchronized void keepPartial(Editor editor) throws IOException {
+        Entry entry = editor.entry;
+        if (entry.currentEditor != editor) {
+            throw new IllegalStateException();
+        }
+        long[] lengths = new long[valueCount];
+        long total = 0;
+        for (int i = 0; i < valueCount; i++) {
+            lengths[i] = entry.getDirtyFile(i).length();
+            total += lengths[i];
+        }
+        if (editor.hasErrors || total == 0 || (entry.readable && !journalsPartials())) {
+            // without a PARTIAL line the journal can't keep both the entry and the partial
+            completeEdit(editor, false);
+            return;
+        }
+
+        redundantOpCount++;
+        entry.currentEditor = null;
+        entry.partialLengths = lengths;
+        partialCount++;
+        size += total;
+        if (journalsPartials()) {
+            journalWriter.writePartial(entry.key);
         }
 
         if (size > maxSize || journalRebuildRequired()) {
@@ -629,7 +1157,14 @@ public final class DiskLruCache implements Closeable {
      *
      * @return true if an entry was removed.
      */
-    public synchronized boolean remove(String key) throws IOException {
+    public boolean remove(String key) throws IOException {
+        if (shards != null) {
+            return shardFor(key).remove(key);
+        }
+        return removeEntry(key);
+    }
+
+    private synchronized boolean removeEntry(String key) throws IOException {
         checkNotClosed();
         validateKey(key);
         Entry entry = lruEntries.get(key);
@@ -637,7 +1172,18 @@ public final class DiskLruCache implements Closeable {
             return false;
         }
 
-        for (int i = 0; i < valueCount; i++) {
+        if (evictionQueue != null) {
+            evictionQueue.remove(entry);
+        }
+        if (entry.partialLengths != null) {
+            for (int i = 0; i < valueCount; i++) {
+                deleteIfExists(entry.getDirtyFile(i));
+                size -= entry.partialLengths[i];
+            }
+            entry.partialLengths = null;
+            partialCount--;
+        }
+        for (int i = 0; entry.readable && i < valueCount; i++) {
             File file = entry.getCleanFile(i);
             if (!file.delete()) {
                 throw new IOException("failed to delete " + file);
@@ -647,7 +1193,7 @@ public final class DiskLruCache implements Closeable {
         }
 
         redundantOpCount++;
-        journalWriter.append(REMOVE + ' ' + key + '\n');
+        journalWriter.writeRemove(key);
         lruEntries.remove(key);
 
         if (journalRebuildRequired()) {
@@ -661,6 +1207,9 @@ public final class DiskLruCache implements Closeable {
      * Returns true if this cache has been closed.
      */
     public boolean isClosed() {
+        if (shards != null) {
+            return shards[0].isClosed();
+        }
         return journalWriter == null;
     }
 
@@ -673,7 +1222,17 @@ public final class DiskLruCache implements Closeable {
     /**
      * Force buffered operations to the filesystem.
      */
-    public synchronized void flush() throws IOException {
+    public void flush() throws IOException {
+        if (shards != null) {
+            for (DiskLruCache shard : shards) {
+                shard.flush();
+            }
+            return;
+        }
+        flushJournal();
+    }
+
+    private synchronized void flushJournal() throws IOException {
         checkNotClosed();
         trimToSize();
         journalWriter.flush();
@@ -682,7 +1241,25 @@ public final class DiskLruCache implements Closeable {
     /**
      * Closes this cache. Stored values will remain on the filesystem.
      */
-    public synchronized void close() throws IOException {
+    public void close() throws IOException {
+        if (shards != null) {
+            IOException thrown = null;
+            for (DiskLruCache shard : shards) {
+                try {
+                    shard.close();
+                } catch (IOException e) {
+                    thrown = e;
+                }
+            }
+            if (thrown != null) {
+                throw thrown;
+            }
+            return;
+        }
+        closeJournal();
+    }
+
+    private synchronized void closeJournal() throws IOException {
         if (journalWriter == null) {
             return; // already closed
         }
@@ -698,12 +1275,62 @@ public final class DiskLruCache implements Closeable {
 
     private void trimToSize() throws IOException {
         while (size > maxSize) {
-//            Map.Entry<String, Entry> toEvict = lruEntries.eldest();
-            final Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();
-            remove(toEvict.getKey());
+            Entry toEvict = nextToEvict();
+            if (toEvict == null) {
+                return; // everything left is being edited
+            }
+            if (evictionQueue != null) {
+                // entries accessed from now on rank above the evicted one
+                inflation = toEvict.priority;
+            }
+            remove(toEvict.key);
         }
     }
 
+    /**
+     * Returns the entry to evict next, skipping entries which are being
+     * edited, or null if there is none. Entries with partial values go first.
+     */
+    private Entry nextToEvict() {
+        if (partialCount > 0) {
+            for (Entry entry : lruEntries.values()) {
+                if (entry.partialLengths != null) {
+                    return entry;
+                }
+            }
+        }
+        Iterable<Entry> candidates = evictionQueue != null ? evictionQueue : lruEntries.values();
+        for (Entry entry : candidates) {
+            if (entry.currentEditor == null) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Recomputes the eviction priority of a readable entry after it was
+     * accessed or its size changed.
+     */
+    private void updatePriority(Entry entry) {
+        if (evictionQueue == null) {
+            return;
+        }
+        // the queue finds the entry by its old priority
+        evictionQueue.remove(entry);
+        if (eviction == Eviction.GDSF) {
+            long entrySize = 0;
+            for (long length : entry.lengths) {
+                entrySize += length;
+            }
+            entry.priority = inflation + (double) entry.accessCount / Math.max(1, entrySize);
+        } else {
+            entry.priority = inflation + entry.accessCount;
+        }
+        entry.queueOrder = nextQueueOrder++;
+        evictionQueue.add(entry);
+    }
+
     /**
      * Closes the cache and deletes all of its stored values. This will delete
      * all files in the cache directory including files that weren't created by
@@ -725,6 +1352,208 @@ public final class DiskLruCache implements Closeable {
         return readFully(new InputStreamReader(in, UTF_8));
     }
 
+    private static final int OP_CLEAN = 1;
+    private static final int OP_DIRTY = 2;
+    private static final int OP_REMOVE = 3;
+    private static final int OP_READ = 4;
+    private static final int OP_FREQ = 5;
+    private static final int OP_PARTIAL = 6;
+    /** Set on an opcode whose key is stored as 16 raw digest bytes. */
+    private static final int OP_DIGEST_KEY = 0x80;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static void readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int count = 0;
+        while (count < length) {
+            int read = in.read(buffer, count, length - count);
+            if (read == -1) {
+                throw new EOFException();
+            }
+            count += read;
+        }
+    }
+
+    private static long readVarint(InputStream in) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException();
+            }
+            result |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+
+    private static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * Returns true if {@code key} is 32 lowercase hex digits, like the MD5
+     * keys of the ImageLoader.
+     */
+    private static boolean isHexDigest(String key) {
+        if (key.length() != 32) {
+            return false;
+        }
+        for (int i = 0; i < 32; i++) {
+            char c = key.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String digestToHex(byte[] digest, char[] hex) {
+        for (int i = 0; i < 16; i++) {
+            hex[i * 2] = HEX_DIGITS[(digest[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX_DIGITS[digest[i] & 0xf];
+        }
+        return new String(hex, 0, 32);
+    }
+
+    /**
+     * Appends records to the journal.
+     */
+    private abstract static class JournalWriter implements Closeable, Flushable {
+        abstract void writeClean(Entry entry) throws IOException;
+
+        abstract void writeDirty(String key) throws IOException;
+
+        abstract void writeRemove(String key) throws IOException;
+
+        abstract void writeRead(String key) throws IOException;
+
+        abstract void writeFreq(String key, long accessCount) throws IOException;
+
+        abstract void writePartial(String key) throws IOException;
+    }
+
+    private static final class TextJournalWriter extends JournalWriter {
+        private final Writer writer;
+
+        private TextJournalWriter(Writer writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        void writeClean(Entry entry) throws IOException {
+            writer.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+        }
+
+        @Override
+        void writeDirty(String key) throws IOException {
+            writer.write(DIRTY + ' ' + key + '\n');
+        }
+
+        @Override
+        void writeRemove(String key) throws IOException {
+            writer.write(REMOVE + ' ' + key + '\n');
+        }
+
+        @Override
+        void writeRead(String key) throws IOException {
+            writer.write(READ + ' ' + key + '\n');
+        }
+
+        @Override
+        void writeFreq(String key, long accessCount) throws IOException {
+            writer.write(FREQ + ' ' + key + ' ' + accessCount + '\n');
+        }
+
+        @Override
+        void writePartial(String key) throws IOException {
+            writer.write(PARTIAL + ' ' + key + '\n');
+        }
+
+        @Override
+        public void flush() throws IOException {
+            writer.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            writer.close();
+        }
+    }
+
+    private static final class BinaryJournalWriter extends JournalWriter {
+        private final OutputStream out;
+
+        private BinaryJournalWriter(OutputStream out) {
+            this.out = out;
+        }
+
+        private void writeOp(int op, String key) throws IOException {
+            if (isHexDigest(key)) {
+                out.write(op | OP_DIGEST_KEY);
+                for (int i = 0; i < 32; i += 2) {
+                    out.write(Character.digit(key.charAt(i), 16) << 4
+                            | Character.digit(key.charAt(i + 1), 16));
+                }
+            } else {
+                byte[] bytes = key.getBytes(UTF_8);
+                out.write(op);
+                writeVarint(out, bytes.length);
+                out.write(bytes);
+            }
+        }
+
+        @Override
+        void writeClean(Entry entry) throws IOException {
+            writeOp(OP_CLEAN, entry.key);
+            for (long length : entry.lengths) {
+                writeVarint(out, length);
+            }
+        }
+
+        @Override
+        void writeDirty(String key) throws IOException {
+            writeOp(OP_DIRTY, key);
+        }
+
+        @Override
+        void writeRemove(String key) throws IOException {
+            writeOp(OP_REMOVE, key);
+        }
+
+        @Override
+        void writeRead(String key) throws IOException {
+            writeOp(OP_READ, key);
+        }
+
+        @Override
+        void writeFreq(String key, long accessCount) throws IOException {
+            writeOp(OP_FREQ, key);
+            writeVarint(out, accessCount);
+        }
+
+        @Override
+        void writePartial(String key) throws IOException {
+            writeOp(OP_PARTIAL, key);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
     /**
      * A snapshot of the values for an entry.
      */
@@ -755,6 +1584,25 @@ public final class DiskLruCache implements Closeable {
             return ins[index];
         }
 
+        /**
+         * Returns the channel of the file with the value for {@code index}.
+         * It shares its position with {@link #getInputStream} and is closed
+         * with this snapshot.
+         */
+        public FileChannel getChannel(int index) {
+            return ((FileInputStream) ins[index]).getChannel();
+        }
+
+        /**
+         * Maps the whole value for {@code index} into memory read-only. The
+         * mapping stays valid after this snapshot is closed, and reading it
+         * needs no further system calls or copies into a Java buffer.
+         */
+        public MappedByteBuffer map(int index) throws IOException {
+            FileChannel channel = getChannel(index);
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
         /**
          * Returns the string value for {@code index}.
          */
@@ -776,6 +1624,8 @@ public final class DiskLruCache implements Closeable {
     public final class Editor {
         private final Entry entry;
         private boolean hasErrors;
+        /** The lengths of the partial values this edit resumes, or null. */
+        private long[] partialLengths;
 
         private Editor(Entry entry) {
             this.entry = entry;
@@ -814,12 +1664,49 @@ public final class DiskLruCache implements Closeable {
          * IOExceptions.
          */
         public OutputStream newOutputStream(int index) throws IOException {
+            return newOutputStream(index, false);
+        }
+
+        /**
+         * Like {@link #newOutputStream(int)}, but appends to the partial value
+         * at {@code index} this edit resumes, see {@link #getPartialLength}.
+         */
+        public OutputStream newAppendingOutputStream(int index) throws IOException {
+            return newOutputStream(index, true);
+        }
+
+        private OutputStream newOutputStream(int index, boolean append) throws IOException {
+            synchronized (DiskLruCache.this) {
+                if (entry.currentEditor != this) {
+                    throw new IllegalStateException();
+                }
+                return new FaultHidingOutputStream(new FileOutputStream(entry.getDirtyFile(index), append));
+            }
+        }
+
+        /**
+         * Returns the length of the value at {@code index} which an earlier
+         * edit kept with {@link #abortKeepingPartial}, 0 if there is none.
+         * Writing the value with {@link #newOutputStream(int)} discards it.
+         */
+        public long getPartialLength(int index) {
+            return partialLengths != null ? partialLengths[index] : 0;
+        }
+
+        /**
+         * Returns the partial value at {@code index} as a string, or null if
+         * this edit doesn't resume one.
+         */
+        public String getPartialString(int index) throws IOException {
             synchronized (DiskLruCache.this) {
                 if (entry.currentEditor != this) {
                     throw new IllegalStateException();
                 }
-                return new FaultHidingOutputStream(new FileOutputStream(entry.getDirtyFile(index)));
+                if (partialLengths == null) {
+                    return null;
+                }
             }
+            return inputStreamToString(new FileInputStream(entry.getDirtyFile(index)));
         }
 
         /**
@@ -856,6 +1743,17 @@ public final class DiskLruCache implements Closeable {
             completeEdit(this, false);
         }
 
+        /**
+         * Aborts this edit, but keeps the values written so far on disk. The
+         * next edit of the entry can resume them, e.g. to continue a download,
+         * until they are evicted. Readers still see the last committed values.
+         * A text journal with {@link Eviction#LRU} keeps them only until the
+         * cache is opened again, and not at all for an entry which is readable.
+         */
+        public void abortKeepingPartial() throws IOException {
+            keepPartial(this);
+        }
+
         private class FaultHidingOutputStream extends FilterOutputStream {
             private FaultHidingOutputStream(OutputStream out) {
                 super(out);
@@ -914,6 +1812,20 @@ public final class DiskLruCache implements Closeable {
         /** The sequence number of the most recently committed edit to this entry. */
         private long sequenceNumber;
 
+        /** Reads of this entry, counting its creation as one. */
+        private long accessCount = 1;
+
+        /** The eviction priority, see {@link Eviction}. Changed by {@link #updatePriority}. */
+        private double priority;
+
+        private long queueOrder;
+
+        /**
+         * The lengths of the dirty files an edit kept with
+         * {@link Editor#abortKeepingPartial}, null if there are none.
+         */
+        private long[] partialLengths;
+
         private Entry(String key) {
             this.key = key;
             this.lengths = new long[valueCount];
@@ -931,17 +1843,23 @@ public final class DiskLruCache implements Closeable {
          * Set lengths using decimal numbers like "10123".
          */
         private void setLengths(String[] strings) throws IOException {
-            if (strings.length != valueCount) {
+            if (strings.length != journalValueCount) {
                 throw invalidLengths(strings);
             }
 
+            // parsed completely before any length changes
+            long[] parsed = new long[strings.length];
             try {
                 for (int i = 0; i < strings.length; i++) {
-                    lengths[i] = Long.parseLong(strings[i]);
+                    parsed[i] = Long.parseLong(strings[i]);
+                    if (parsed[i] < 0) {
+                        throw invalidLengths(strings);
+                    }
                 }
             } catch (NumberFormatException e) {
                 throw invalidLengths(strings);
             }
+            System.arraycopy(parsed, 0, lengths, 0, parsed.length);
         }
 
         private IOException invalidLengths(String[] strings) throws IOException {
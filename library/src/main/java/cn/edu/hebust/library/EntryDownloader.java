@@ -0,0 +1,237 @@
+package cn.edu.hebust.library;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Downloads images into Disk-Cache entries for the network stage of the
+ * ImageLoader. An entry which kept the part of an interrupted download is
+ * resumed with a Range request, a download which is interrupted again keeps
+ * what arrived, and the cache headers of the response go into the metadata
+ * value of the entry. Free of Android, it can be tested against a local
+ * HTTP server.
+ */
+final class EntryDownloader {
+
+    // HttpURLConnection中没有定义
+    static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+    private static final int BUFFER_SIZE = 8 * 1024;             // 8KB
+
+    /**
+     * Sees the body of a download while it is written to the entry.
+     */
+    interface BodyListener {
+        /**
+         * The body starts, {@code contentLength} bytes long or -1 if unknown.
+         */
+        void begin(long contentLength);
+
+        void onBytes(byte[] buf, int count);
+
+        /**
+         * The body ended after {@link #begin(long)}, completely or not.
+         */
+        void end();
+    }
+
+    private EntryDownloader() {
+    }
+
+    /**
+     * 下载到Disk-Cache条目中并结束编辑. 条目保留着上次中断时已下载的部分时, 用Range请求只下载剩余部分,
+     * 服务器不支持Range或图片已改变时(200)重新下载全部. 下载再次中断时保留已下载的部分
+     *
+     * @param listener sees a download from the start, may be null.
+     * @return true if the edit was committed.
+     */
+    static boolean download(NetworkFetcher fetcher, String uri, DiskLruCache.Editor editor,
+                            BodyListener listener) throws IOException {
+        long resumeFrom = editor.getPartialLength(ImageLoader.DISK_CACHE_INDEX);
+        boolean committed = false;
+        // 未提交时是否保留已下载的部分: 请求失败时保留原有的部分
+        boolean keepPartial = false;
+        NetworkFetcher.Response response = null;
+        ImageMetadata.Builder metadata = null;
+        OutputStream os = null;
+        try {
+            ImageMetadata partial = null;
+            Map<String, String> headers = null;
+            if (resumeFrom > 0) {
+                partial = ImageMetadata.decode(editor.getPartialString(ImageLoader.DISK_CACHE_METADATA_INDEX));
+                String validator = rangeValidator(partial.getETag(), partial.getLastModified());
+                if (validator != null) {
+                    // 图片在服务器上改变时If-Range使响应为完整的200
+                    headers = new HashMap<String, String>();
+                    headers.put("Range", "bytes=" + resumeFrom + "-");
+                    headers.put("If-Range", validator);
+                    keepPartial = true;
+                }
+            }
+
+            response = fetcher.fetch(uri, headers);
+            long offset;
+            if (response.getCode() == HttpURLConnection.HTTP_PARTIAL && headers != null
+                    && parseRangeStart(response.getHeader("Content-Range")) == resumeFrom) {
+                offset = resumeFrom;
+                metadata = partial.newBuilder();
+                os = editor.newAppendingOutputStream(ImageLoader.DISK_CACHE_INDEX);
+            } else if (response.getCode() == HttpURLConnection.HTTP_OK) {
+                offset = 0;
+                metadata = new ImageMetadata.Builder();
+                os = editor.newOutputStream(ImageLoader.DISK_CACHE_INDEX);
+            } else {
+                if (response.getCode() == HTTP_RANGE_NOT_SATISFIABLE
+                        || response.getCode() == HttpURLConnection.HTTP_PARTIAL) {
+                    // 已下载的部分与服务器上的图片对不上
+                    keepPartial = false;
+                }
+                return false;
+            }
+            keepPartial = isResumable(response);
+            setResponseMetadata(metadata, response);
+            // 续传的剩余部分无法单独解码
+            long count = writeBody(response, os, offset == 0 ? listener : null);
+            os = null;
+            // 尺寸在第一次解码时补充
+            metadata.setByteCount(offset + count);
+            editor.set(ImageLoader.DISK_CACHE_METADATA_INDEX, metadata.build().encode());
+            editor.commit();
+            committed = true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                if (os != null) {
+                    os.close();
+                }
+                if (response != null) {
+                    response.close();
+                }
+                if (!committed) {
+                    if (!keepPartial) {
+                        editor.abort();
+                    } else if (metadata != null) {
+                        keepPartial(editor, metadata, response);
+                    } else {
+                        // 没有新的数据, 保留原有的部分和验证头部
+                        editor.abortKeepingPartial();
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return committed;
+    }
+
+    /**
+     * Ends an interrupted download, keeping what was written for the next
+     * attempt to resume, together with the validator of {@code response}.
+     */
+    static void keepPartial(DiskLruCache.Editor editor, ImageMetadata.Builder metadata,
+                            NetworkFetcher.Response response) throws IOException {
+        setResponseMetadata(metadata, response);
+        editor.set(ImageLoader.DISK_CACHE_METADATA_INDEX, metadata.build().encode());
+        editor.abortKeepingPartial();
+    }
+
+    /**
+     * 记录响应中用于缓存验证的头部, 下载时间和过期时间. 响应中没有的验证头部保持不变
+     */
+    static void setResponseMetadata(ImageMetadata.Builder metadata, NetworkFetcher.Response response) {
+        String eTag = response.getHeader("ETag");
+        if (eTag != null) {
+            metadata.setETag(eTag);
+        }
+        String lastModified = response.getHeader("Last-Modified");
+        if (lastModified != null) {
+            metadata.setLastModified(lastModified);
+        }
+        long now = System.currentTimeMillis();
+        metadata.setFetchTime(now)
+                .setExpireTime(ImageMetadata.parseExpireTime(response.getHeader("Cache-Control"),
+                        response.getHeader("Expires"), response.getHeader("Date"), now));
+    }
+
+    /**
+     * Returns true if a download of {@code response} can be resumed with a
+     * Range request: the server didn't refuse ranges and sent a validator.
+     */
+    static boolean isResumable(NetworkFetcher.Response response) {
+        if (response == null || "none".equalsIgnoreCase(response.getHeader("Accept-Ranges"))) {
+            return false;
+        }
+        return rangeValidator(response.getHeader("ETag"), response.getHeader("Last-Modified")) != null;
+    }
+
+    /**
+     * Returns the If-Range value which ensures a range continues the same
+     * image: a strong ETag, else Last-Modified, or null. Weak ETags aren't allowed.
+     */
+    static String rangeValidator(String eTag, String lastModified) {
+        if (eTag != null && !eTag.startsWith("W/")) {
+            return eTag;
+        }
+        return lastModified;
+    }
+
+    /**
+     * Returns the first byte position of a Content-Range like "bytes 100-999/1000", or -1.
+     */
+    static long parseRangeStart(String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return -1;
+        }
+        int dash = contentRange.indexOf('-');
+        if (dash == -1) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring("bytes ".length(), dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Copies the body of {@code response} to {@code os} and closes it, also
+     * when the download fails, so what arrived is written.
+     *
+     * @param listener is handed every chunk as it arrives and told when the
+     *                 body ends, may be null.
+     * @return the number of bytes copied.
+     */
+    static long writeBody(NetworkFetcher.Response response, OutputStream os,
+                          BodyListener listener) throws IOException {
+        BufferedOutputStream bos = new BufferedOutputStream(os, BUFFER_SIZE);
+        boolean begun = false;
+        try {
+            InputStream is = response.getBody();
+            if (listener != null) {
+                begun = true;
+                listener.begin(response.getContentLength());
+            }
+            byte[] buf = new byte[BUFFER_SIZE];
+            long total = 0;
+            int count;
+            while ((count = is.read(buf)) != -1) {
+                bos.write(buf, 0, count);
+                total += count;
+                if (listener != null) {
+                    listener.onBytes(buf, count);
+                }
+            }
+            return total;
+        } finally {
+            if (begun) {
+                listener.end();
+            }
+            bos.close();
+        }
+    }
+}
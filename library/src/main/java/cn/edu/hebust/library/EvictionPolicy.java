@@ -0,0 +1,380 @@
+package cn.edu.hebust.library;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decides which entry {@link MemoryCache} evicts when it is over its maximum
+ * size. The cache calls every method while holding its lock, so a policy
+ * needn't be thread safe; sizes are in the units of {@link MemoryCache#sizeOf}.
+ */
+public abstract class EvictionPolicy<K> {
+
+    public enum Type {
+        /**
+         * Least recently used, like {@link android.util.LruCache}. One scan
+         * through more images than fit flushes the whole cache.
+         */
+        LRU,
+        /**
+         * Segmented LRU: entries hit a second time move to a protected
+         * segment of 80% of the cache, new ones are evicted from a
+         * probation segment first.
+         */
+        SLRU,
+        /**
+         * W-TinyLFU: a small LRU window for new entries in front of an SLRU,
+         * entries leaving the window are only admitted to the SLRU if they
+         * were accessed more often than its victim. Keeps frequently shown
+         * images through scans.
+         */
+        TINY_LFU
+    }
+
+    /**
+     * Returns a new policy of {@code type}, each cache needs its own.
+     */
+    public static <K> EvictionPolicy<K> create(Type type) {
+        switch (type) {
+            case LRU:
+                return new Lru<K>();
+            case SLRU:
+                return new SegmentedLru<K>();
+            case TINY_LFU:
+                return new WindowTinyLfu<K>();
+            default:
+                throw new IllegalArgumentException("type: " + type);
+        }
+    }
+
+    /**
+     * Sets the maximum size of the cache, called before anything else and
+     * whenever it is resized.
+     */
+    protected abstract void setMaxSize(int maxSize);
+
+    /**
+     * Called for every lookup and every put of {@code key}, hit or not.
+     */
+    protected void recordAccess(K key) {
+    }
+
+    /**
+     * Called when a lookup of the cached {@code key} hit.
+     */
+    protected abstract void onHit(K key);
+
+    /**
+     * Called when {@code key} is added to the cache.
+     */
+    protected abstract void onAdd(K key, int size);
+
+    /**
+     * Called when the cached {@code key} is removed or evicted.
+     */
+    protected abstract void onRemove(K key);
+
+    /**
+     * Called when the cached {@code key} is pinned, its value is in use.
+     * It keeps its place and is hit like other entries, but weighs nothing
+     * and mustn't be the victim until {@link #onUnpin} is called.
+     */
+    protected abstract void onPin(K key);
+
+    /**
+     * Called when the pinned {@code key} weighs its size again.
+     */
+    protected abstract void onUnpin(K key);
+
+    /**
+     * Returns the cached key to evict next, which isn't pinned, null if
+     * there is none. The cache evicts it and reports it to {@link #onRemove}.
+     */
+    protected abstract K victim();
+
+    /**
+     * The size of an entry, and whether it is pinned.
+     */
+    static final class Node {
+        final int mSize;
+        boolean mPinned;
+
+        Node(int size) {
+            mSize = size;
+        }
+
+        int weight() {
+            return mPinned ? 0 : mSize;
+        }
+    }
+
+    /**
+     * Keys in LRU order, eldest first, with their sizes.
+     */
+    static final class Segment<K> {
+        private final LinkedHashMap<K, Node> mEntries = new LinkedHashMap<K, Node>(0, 0.75f, true);
+        // 不含被固定的条目
+        int mSize;
+
+        void add(K key, int size) {
+            add(key, new Node(size));
+        }
+
+        void add(K key, Node node) {
+            mEntries.put(key, node);
+            mSize += node.weight();
+        }
+
+        Node remove(K key) {
+            Node node = mEntries.remove(key);
+            if (node != null) {
+                mSize -= node.weight();
+            }
+            return node;
+        }
+
+        /**
+         * Moves {@code key} to the tail if it is in this segment.
+         */
+        boolean touch(K key) {
+            return mEntries.get(key) != null;
+        }
+
+        /**
+         * Pins or unpins {@code key} if it is in this segment. It moves to the
+         * tail like on a hit, the entry was in use until it is unpinned.
+         */
+        boolean setPinned(K key, boolean pinned) {
+            Node node = mEntries.get(key);
+            if (node == null) {
+                return false;
+            }
+            mSize -= node.weight();
+            node.mPinned = pinned;
+            mSize += node.weight();
+            return true;
+        }
+
+        int count() {
+            return mEntries.size();
+        }
+
+        K eldest() {
+            return eldestExcept(null);
+        }
+
+        /**
+         * Returns the eldest key which isn't pinned, other than {@code excluded}.
+         */
+        K eldestExcept(K excluded) {
+            for (Map.Entry<K, Node> entry : mEntries.entrySet()) {
+                if (!entry.getValue().mPinned && !entry.getKey().equals(excluded)) {
+                    return entry.getKey();
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Moves the eldest entries into {@code to} until this segment fits into
+         * {@code maxSize}. Pinned entries weigh nothing and stay.
+         */
+        void overflowTo(Segment<K> to, int maxSize) {
+            while (mSize > maxSize) {
+                K key = eldest();
+                to.add(key, remove(key));
+            }
+        }
+    }
+
+    private static final class Lru<K> extends EvictionPolicy<K> {
+        private final Segment<K> mEntries = new Segment<K>();
+
+        @Override
+        protected void setMaxSize(int maxSize) {
+        }
+
+        @Override
+        protected void onHit(K key) {
+            mEntries.touch(key);
+        }
+
+        @Override
+        protected void onAdd(K key, int size) {
+            mEntries.add(key, size);
+        }
+
+        @Override
+        protected void onRemove(K key) {
+            mEntries.remove(key);
+        }
+
+        @Override
+        protected void onPin(K key) {
+            mEntries.setPinned(key, true);
+        }
+
+        @Override
+        protected void onUnpin(K key) {
+            mEntries.setPinned(key, false);
+        }
+
+        @Override
+        protected K victim() {
+            return mEntries.eldest();
+        }
+    }
+
+    private static final class SegmentedLru<K> extends EvictionPolicy<K> {
+        private final Segment<K> mProbation = new Segment<K>();
+        private final Segment<K> mProtected = new Segment<K>();
+        private int mProtectedMaxSize;
+
+        @Override
+        protected void setMaxSize(int maxSize) {
+            mProtectedMaxSize = (int) (maxSize * 0.8f);
+            mProtected.overflowTo(mProbation, mProtectedMaxSize);
+        }
+
+        @Override
+        protected void onHit(K key) {
+            if (mProtected.touch(key)) {
+                return;
+            }
+            Node node = mProbation.remove(key);
+            if (node != null) {
+                mProtected.add(key, node);
+                // 被挤出的条目回到probation中最近使用的一端
+                mProtected.overflowTo(mProbation, mProtectedMaxSize);
+            }
+        }
+
+        @Override
+        protected void onAdd(K key, int size) {
+            mProbation.add(key, size);
+        }
+
+        @Override
+        protected void onRemove(K key) {
+            if (mProbation.remove(key) == null) {
+                mProtected.remove(key);
+            }
+        }
+
+        @Override
+        protected void onPin(K key) {
+            if (!mProbation.setPinned(key, true)) {
+                mProtected.setPinned(key, true);
+            }
+        }
+
+        @Override
+        protected void onUnpin(K key) {
+            if (!mProbation.setPinned(key, false) && mProtected.setPinned(key, false)) {
+                mProtected.overflowTo(mProbation, mProtectedMaxSize);
+            }
+        }
+
+        @Override
+        protected K victim() {
+            K key = mProbation.eldest();
+            return key != null ? key : mProtected.eldest();
+        }
+    }
+
+    private static final class WindowTinyLfu<K> extends EvictionPolicy<K> {
+        // 窗口占缓存的1%, 其余是SLRU
+        private static final int WINDOW_PERCENT = 1;
+        private static final float PROTECTED_RATIO = 0.8f;
+
+        private final Segment<K> mWindow = new Segment<K>();
+        private final Segment<K> mProbation = new Segment<K>();
+        private final Segment<K> mProtected = new Segment<K>();
+        private final FrequencySketch mSketch = new FrequencySketch(0);
+        private int mWindowMaxSize;
+        private int mMainMaxSize;
+        private int mProtectedMaxSize;
+
+        @Override
+        protected void setMaxSize(int maxSize) {
+            mWindowMaxSize = Math.max(1, (int) ((long) maxSize * WINDOW_PERCENT / 100));
+            mMainMaxSize = Math.max(0, maxSize - mWindowMaxSize);
+            mProtectedMaxSize = (int) (mMainMaxSize * PROTECTED_RATIO);
+            mProtected.overflowTo(mProbation, mProtectedMaxSize);
+        }
+
+        @Override
+        protected void recordAccess(K key) {
+            mSketch.increment(key);
+        }
+
+        @Override
+        protected void onHit(K key) {
+            if (mWindow.touch(key) || mProtected.touch(key)) {
+                return;
+            }
+            Node node = mProbation.remove(key);
+            if (node != null) {
+                mProtected.add(key, node);
+                mProtected.overflowTo(mProbation, mProtectedMaxSize);
+            }
+        }
+
+        @Override
+        protected void onAdd(K key, int size) {
+            mWindow.add(key, size);
+            mSketch.ensureCapacity(mWindow.count() + mProbation.count() + mProtected.count());
+        }
+
+        @Override
+        protected void onRemove(K key) {
+            if (mWindow.remove(key) == null && mProbation.remove(key) == null) {
+                mProtected.remove(key);
+            }
+        }
+
+        @Override
+        protected void onPin(K key) {
+            if (!mWindow.setPinned(key, true) && !mProbation.setPinned(key, true)) {
+                mProtected.setPinned(key, true);
+            }
+        }
+
+        @Override
+        protected void onUnpin(K key) {
+            if (!mWindow.setPinned(key, false) && !mProbation.setPinned(key, false)
+                    && mProtected.setPinned(key, false)) {
+                mProtected.overflowTo(mProbation, mProtectedMaxSize);
+            }
+        }
+
+        @Override
+        protected K victim() {
+            while (mWindow.mSize > mWindowMaxSize) {
+                // 窗口淘汰的条目是候选, SLRU有空间时直接进入, 否则与SLRU的淘汰对象比较访问频率
+                K candidate = mWindow.eldest();
+                Node node = mWindow.remove(candidate);
+                mProbation.add(candidate, node);
+                int size = node.mSize;
+                if (mProbation.mSize + mProtected.mSize <= mMainMaxSize) {
+                    continue;
+                }
+                if (size > mMainMaxSize) {
+                    return candidate;
+                }
+                K victim = mainVictim(candidate);
+                if (victim == null || mSketch.frequency(candidate) <= mSketch.frequency(victim)) {
+                    return candidate;
+                }
+                return victim;
+            }
+            K victim = mainVictim(null);
+            return victim != null ? victim : mWindow.eldest();
+        }
+
+        private K mainVictim(K candidate) {
+            K victim = mProbation.eldestExcept(candidate);
+            return victim != null ? victim : mProtected.eldestExcept(candidate);
+        }
+    }
+}
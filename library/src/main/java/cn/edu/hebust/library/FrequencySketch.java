@@ -0,0 +1,108 @@
+package cn.edu.hebust.library;
+
+/**
+ * Approximate access frequencies of keys in little memory, a Count-Min
+ * sketch of 4 bit counters as TinyLFU uses it: every key maps to one counter
+ * in each of four rows, its frequency is the smallest of them.
+ * <p>
+ * The counters are halved after a sample of 10 accesses per table slot, so
+ * keys which were popular long ago lose their weight. Not thread safe.
+ */
+final class FrequencySketch {
+
+    // 四行计数器各自的哈希种子
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+    private static final int MAX_COUNT = 15;
+
+    // 每个long中有16个4bit的计数器
+    private long[] mTable;
+    private int mTableMask;
+    private int mSampleSize;
+    private int mSize;
+
+    FrequencySketch(int expectedSize) {
+        ensureCapacity(expectedSize);
+    }
+
+    /**
+     * Grows the sketch for {@code expectedSize} distinct keys, forgetting
+     * the counts. Does nothing if it is large enough already.
+     */
+    void ensureCapacity(int expectedSize) {
+        int maximum = Math.max(16, Math.min(expectedSize, 1 << 30));
+        int length = Integer.highestOneBit(maximum - 1) << 1;
+        if (mTable != null && mTable.length >= length) {
+            return;
+        }
+        mTable = new long[length];
+        mTableMask = length - 1;
+        mSampleSize = 10 * maximum;
+        mSize = 0;
+    }
+
+    /**
+     * Returns the estimated number of accesses of the key, at most 15.
+     */
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int count = (int) ((mTable[index] >>> ((start + i) << 2)) & 0xFL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Counts an access of the key, halving all counters once the sample is full.
+     */
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && ++mSize == mSampleSize) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        int offset = counter << 2;
+        long mask = 0xFL << offset;
+        if ((mTable[index] & mask) != mask) {
+            mTable[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    private void reset() {
+        int odd = 0;
+        for (int i = 0; i < mTable.length; i++) {
+            odd += Long.bitCount(mTable[i] & ONE_MASK);
+            mTable[i] = (mTable[i] >>> 1) & RESET_MASK;
+        }
+        // 奇数计数减半时各丢了1/2
+        mSize = (mSize >>> 1) - (odd >>> 2);
+    }
+
+    private int indexOf(int hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h += h >>> 32;
+        return ((int) h) & mTableMask;
+    }
+
+    // 打散质量较差的hashCode
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
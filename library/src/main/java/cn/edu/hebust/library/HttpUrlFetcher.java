@@ -0,0 +1,251 @@
+package cn.edu.hebust.library;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * {@link NetworkFetcher} on {@link HttpURLConnection}, which keeps idle
+ * connections alive in its own pool (OkHttp's on Android, five per host).
+ * Connections are never disconnected here: a response gives its connection
+ * back to that pool by reading its body to the end and closing it, so the
+ * next image from the same CDN host skips the TCP and TLS handshakes.
+ * <p>
+ * At most {@code maxRequestsPerHost} requests run against one host at a
+ * time, further requests wait for one of them to be closed. That keeps a
+ * grid of images from one host within the connections the pool keeps alive
+ * instead of opening a burst of new ones. Free of Android, it can be tested
+ * against a local HTTP server.
+ */
+public class HttpUrlFetcher implements NetworkFetcher {
+
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10 * 1000;    // 10s
+    public static final int DEFAULT_READ_TIMEOUT = 30 * 1000;       // 30s
+    public static final int DEFAULT_MAX_REQUESTS_PER_HOST = 5;
+    // 关闭时最多读完这么多剩余字节以复用连接, 更多时直接断开
+    private static final int MAX_DRAIN_SIZE = 64 * 1024;              // 64KB
+
+    private final int mConnectTimeout;
+    private final int mReadTimeout;
+    private final int mMaxRequestsPerHost;
+    // 每个host(含端口)的并发许可
+    private final ConcurrentMap<String, Semaphore> mHostPermits = new ConcurrentHashMap<String, Semaphore>();
+
+    public HttpUrlFetcher() {
+        this(DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT, DEFAULT_MAX_REQUESTS_PER_HOST);
+    }
+
+    /**
+     * @param connectTimeout     milliseconds to wait for a connection, 0 waits forever.
+     * @param readTimeout        milliseconds to wait for each read, 0 waits forever.
+     * @param maxRequestsPerHost concurrent requests to one host.
+     */
+    public HttpUrlFetcher(int connectTimeout, int readTimeout, int maxRequestsPerHost) {
+        if (connectTimeout < 0 || readTimeout < 0) {
+            throw new IllegalArgumentException("timeout < 0");
+        }
+        if (maxRequestsPerHost <= 0) {
+            throw new IllegalArgumentException("maxRequestsPerHost <= 0");
+        }
+        mConnectTimeout = connectTimeout;
+        mReadTimeout = readTimeout;
+        mMaxRequestsPerHost = maxRequestsPerHost;
+    }
+
+    @Override
+    public Response fetch(String uri, Map<String, String> headers) throws IOException {
+        URL url = new URL(uri);
+        Semaphore permits = permitsOf(url);
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for " + url.getHost());
+        }
+        HttpURLConnection conn = null;
+        HttpResponse response = null;
+        try {
+            conn = (HttpURLConnection) url.openConnection();
+            conn.setConnectTimeout(mConnectTimeout);
+            conn.setReadTimeout(mReadTimeout);
+            if (headers != null) {
+                for (Map.Entry<String, String> header : headers.entrySet()) {
+                    conn.setRequestProperty(header.getKey(), header.getValue());
+                }
+            }
+            int code = conn.getResponseCode();
+            if (code == -1) {
+                throw new IOException("invalid response from " + uri);
+            }
+            response = new HttpResponse(conn, code, permits);
+            return response;
+        } finally {
+            if (response == null) {
+                // 没有响应, 连接无法复用
+                if (conn != null) {
+                    conn.disconnect();
+                }
+                permits.release();
+            }
+        }
+    }
+
+    /**
+     * Returns how many more requests to the host of {@code uri} could start
+     * right now, for tests and monitoring.
+     */
+    public int availableRequests(String uri) throws IOException {
+        return permitsOf(new URL(uri)).availablePermits();
+    }
+
+    private Semaphore permitsOf(URL url) {
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        String host = url.getHost() + ":" + port;
+        Semaphore permits = mHostPermits.get(host);
+        if (permits == null) {
+            Semaphore created = new Semaphore(mMaxRequestsPerHost);
+            permits = mHostPermits.putIfAbsent(host, created);
+            if (permits == null) {
+                permits = created;
+            }
+        }
+        return permits;
+    }
+
+    private static final class HttpResponse implements Response {
+        private final HttpURLConnection mConn;
+        private final int mCode;
+        private final Semaphore mPermits;
+        private InputStream mBody;
+        private boolean mClosed;
+        // 读取失败过, 如超时, 连接不再可用
+        private volatile boolean mBroken;
+
+        HttpResponse(HttpURLConnection conn, int code, Semaphore permits) {
+            mConn = conn;
+            mCode = code;
+            mPermits = permits;
+        }
+
+        @Override
+        public int getCode() {
+            return mCode;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return mConn.getHeaderField(name);
+        }
+
+        @Override
+        public long getContentLength() {
+            String length = mConn.getHeaderField("Content-Length");
+            if (length == null) {
+                return -1;
+            }
+            try {
+                return Long.parseLong(length.trim());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        @Override
+        public synchronized InputStream getBody() throws IOException {
+            if (mClosed) {
+                throw new IOException("response is closed");
+            }
+            return new FilterInputStream(body()) {
+                @Override
+                public int read() throws IOException {
+                    try {
+                        return super.read();
+                    } catch (IOException e) {
+                        mBroken = true;
+                        throw e;
+                    }
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int count) throws IOException {
+                    try {
+                        return super.read(buffer, offset, count);
+                    } catch (IOException e) {
+                        mBroken = true;
+                        throw e;
+                    }
+                }
+
+                @Override
+                public void close() {
+                    // 由Response关闭
+                }
+            };
+        }
+
+        @Override
+        public synchronized void close() {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            try {
+                if (!mBroken && drain()) {
+                    mBody.close();
+                } else {
+                    mConn.disconnect();
+                }
+            } catch (IOException e) {
+                mConn.disconnect();
+            } finally {
+                mPermits.release();
+            }
+        }
+
+        /**
+         * Reads the rest of a short body, the connection is only reused
+         * after its body was read to the end.
+         *
+         * @return false if the body is too long to be worth reading.
+         */
+        private boolean drain() throws IOException {
+            InputStream body = body();
+            byte[] buf = new byte[4096];
+            int drained = 0;
+            int count;
+            while ((count = body.read(buf)) != -1) {
+                drained += count;
+                if (drained > MAX_DRAIN_SIZE) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private InputStream body() throws IOException {
+            if (mBody == null) {
+                mBody = mCode >= HttpURLConnection.HTTP_BAD_REQUEST
+                        ? mConn.getErrorStream() : mConn.getInputStream();
+                if (mBody == null) {
+                    // 没有响应体, 如304
+                    mBody = new EmptyInputStream();
+                }
+            }
+            return mBody;
+        }
+    }
+
+    private static final class EmptyInputStream extends InputStream {
+        @Override
+        public int read() {
+            return -1;
+        }
+    }
+}
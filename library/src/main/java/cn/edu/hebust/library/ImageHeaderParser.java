@@ -0,0 +1,234 @@
+package cn.edu.hebust.library;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reads width, height, MIME type and EXIF orientation from the headers of
+ * JPEG, PNG, GIF and WebP images, without running a decoder. Only the
+ * header bytes are touched: JPEG segments before the frame header are
+ * skipped by their length, so on a memory-mapped file the pixels are
+ * never paged in.
+ */
+public final class ImageHeaderParser {
+
+    /**
+     * Bytes enough for the header of every supported format, including JPEG
+     * files with an EXIF segment of the maximum size (64KB) before the frame header.
+     */
+    public static final int MAX_HEADER_SIZE = 65 * 1024;
+
+    private static final int JPEG_SOI = 0xFFD8;
+    private static final int JPEG_MARKER_SOS = 0xDA;
+    private static final int JPEG_MARKER_EOI = 0xD9;
+    private static final int JPEG_MARKER_APP1 = 0xE1;
+    private static final int EXIF_TAG_ORIENTATION = 0x0112;
+    private static final long PNG_SIGNATURE = 0x89504E470D0A1A0AL;
+    private static final int PNG_IHDR = 0x49484452;     // "IHDR"
+    private static final int RIFF = 0x52494646;         // "RIFF"
+    private static final int WEBP = 0x57454250;         // "WEBP"
+    private static final int WEBP_VP8 = 0x56503820;     // "VP8 "
+    private static final int WEBP_VP8L = 0x5650384C;    // "VP8L"
+    private static final int WEBP_VP8X = 0x56503858;    // "VP8X"
+
+    private ImageHeaderParser() {
+    }
+
+    /**
+     * Parses the header of the image from the position to the limit of
+     * {@code data}, the buffer itself isn't modified.
+     *
+     * @return null if the format isn't recognized or the header is cut off.
+     */
+    public static ImageInfo parse(ByteBuffer data) {
+        ByteBuffer buffer = data.slice().order(ByteOrder.BIG_ENDIAN);
+        try {
+            if (buffer.remaining() < 12) {
+                return null;
+            }
+            if ((buffer.getShort(0) & 0xFFFF) == JPEG_SOI) {
+                return parseJpeg(buffer);
+            }
+            if (buffer.getLong(0) == PNG_SIGNATURE) {
+                return parsePng(buffer);
+            }
+            if (buffer.get(0) == 'G' && buffer.get(1) == 'I' && buffer.get(2) == 'F') {
+                return parseGif(buffer);
+            }
+            if (buffer.getInt(0) == RIFF && buffer.getInt(8) == WEBP) {
+                return parseWebp(buffer);
+            }
+        } catch (IndexOutOfBoundsException e) {
+            // 文件头不完整
+        }
+        return null;
+    }
+
+    /**
+     * Parses the header at the start of {@code in} and resets the stream to
+     * where it was, reading at most {@code limit} bytes.
+     *
+     * @param in must support mark/reset, e.g. a BufferedInputStream.
+     * @return null if the format isn't recognized within {@code limit} bytes.
+     */
+    public static ImageInfo parse(InputStream in, int limit) throws IOException {
+        if (!in.markSupported()) {
+            throw new IllegalArgumentException("stream doesn't support mark/reset");
+        }
+        byte[] header = new byte[limit];
+        in.mark(limit);
+        int count = 0;
+        int read;
+        try {
+            while (count < limit && (read = in.read(header, count, limit - count)) != -1) {
+                count += read;
+                // 大多数文件头在前几个KB中, 不必等待读满
+                ImageInfo info = parse(ByteBuffer.wrap(header, 0, count));
+                if (info != null) {
+                    return info;
+                }
+            }
+        } finally {
+            in.reset();
+        }
+        return null;
+    }
+
+    private static ImageInfo parseJpeg(ByteBuffer buffer) {
+        int orientation = ImageInfo.ORIENTATION_NORMAL;
+        int pos = 2;
+        while (true) {
+            if ((buffer.get(pos) & 0xFF) != 0xFF) {
+                return null;
+            }
+            // 标记前可以有任意个0xFF填充
+            int marker;
+            do {
+                marker = buffer.get(++pos) & 0xFF;
+            } while (marker == 0xFF);
+            pos++;
+            if (marker == JPEG_MARKER_SOS || marker == JPEG_MARKER_EOI) {
+                // 图像数据开始前没有找到SOF
+                return null;
+            }
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                // 没有长度的标记
+                continue;
+            }
+            int length = buffer.getShort(pos) & 0xFFFF;
+            if (isStartOfFrame(marker)) {
+                int height = buffer.getShort(pos + 3) & 0xFFFF;
+                int width = buffer.getShort(pos + 5) & 0xFFFF;
+                if (width == 0 || height == 0) {
+                    return null;
+                }
+                return new ImageInfo(width, height, "image/jpeg", orientation);
+            }
+            if (marker == JPEG_MARKER_APP1 && length >= 8) {
+                orientation = parseExifOrientation(buffer, pos + 2, length - 2);
+            }
+            pos += length;
+        }
+    }
+
+    private static boolean isStartOfFrame(int marker) {
+        // SOF0-SOF15, 除去DHT(C4), JPG(C8)和DAC(CC)
+        return marker >= 0xC0 && marker <= 0xCF
+                && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+    }
+
+    /**
+     * Reads the orientation tag from IFD0 of an APP1 segment.
+     *
+     * @return {@link ImageInfo#ORIENTATION_NORMAL} if the segment isn't EXIF
+     * or has no valid orientation.
+     */
+    private static int parseExifOrientation(ByteBuffer buffer, int start, int length) {
+        // "Exif\0\0"
+        if (length < 14 || buffer.getInt(start) != 0x45786966 || buffer.getShort(start + 4) != 0) {
+            return ImageInfo.ORIENTATION_NORMAL;
+        }
+        // 文件被截断时只解析已有的部分
+        int end = Math.min(start + length, buffer.limit());
+        ByteBuffer tiff = ((ByteBuffer) buffer.duplicate().limit(end).position(start + 6)).slice();
+        short byteOrder = tiff.getShort(0);
+        if (byteOrder == 0x4949) {              // "II"
+            tiff.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (byteOrder != 0x4D4D) {       // "MM"
+            return ImageInfo.ORIENTATION_NORMAL;
+        }
+        try {
+            if (tiff.getShort(2) != 42) {
+                return ImageInfo.ORIENTATION_NORMAL;
+            }
+            int ifd = tiff.getInt(4);
+            int count = tiff.getShort(ifd) & 0xFFFF;
+            for (int i = 0; i < count; i++) {
+                int entry = ifd + 2 + i * 12;
+                if ((tiff.getShort(entry) & 0xFFFF) == EXIF_TAG_ORIENTATION) {
+                    int orientation = tiff.getShort(entry + 8) & 0xFFFF;
+                    return orientation >= ImageInfo.ORIENTATION_NORMAL && orientation <= ImageInfo.ORIENTATION_ROTATE_270
+                            ? orientation : ImageInfo.ORIENTATION_NORMAL;
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            // IFD超出了APP1段
+        }
+        return ImageInfo.ORIENTATION_NORMAL;
+    }
+
+    private static ImageInfo parsePng(ByteBuffer buffer) {
+        // 签名之后的第一个块必须是IHDR
+        if (buffer.getInt(12) != PNG_IHDR) {
+            return null;
+        }
+        return newInfo(buffer.getInt(16), buffer.getInt(20), "image/png");
+    }
+
+    private static ImageInfo parseGif(ByteBuffer buffer) {
+        // logical screen descriptor
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return newInfo(buffer.getShort(6) & 0xFFFF, buffer.getShort(8) & 0xFFFF, "image/gif");
+    }
+
+    private static ImageInfo parseWebp(ByteBuffer buffer) {
+        int chunk = buffer.getInt(12);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (chunk == WEBP_VP8) {
+            // 有损: 3字节的帧标记, 起始码9D 01 2A, 然后是14位的宽高
+            if ((buffer.get(23) & 0xFF) != 0x9D || (buffer.get(24) & 0xFF) != 0x01
+                    || (buffer.get(25) & 0xFF) != 0x2A) {
+                return null;
+            }
+            return newInfo(buffer.getShort(26) & 0x3FFF, buffer.getShort(28) & 0x3FFF, "image/webp");
+        }
+        if (chunk == WEBP_VP8L) {
+            // 无损: 签名0x2F, 然后是14位的(宽-1)和14位的(高-1)
+            if ((buffer.get(20) & 0xFF) != 0x2F) {
+                return null;
+            }
+            int bits = buffer.getInt(21);
+            return newInfo((bits & 0x3FFF) + 1, ((bits >> 14) & 0x3FFF) + 1, "image/webp");
+        }
+        if (chunk == WEBP_VP8X) {
+            // 扩展格式: 1字节标志, 3字节保留, 然后是24位的(画布宽-1)和(画布高-1)
+            return newInfo(getUInt24(buffer, 24) + 1, getUInt24(buffer, 27) + 1, "image/webp");
+        }
+        return null;
+    }
+
+    private static int getUInt24(ByteBuffer buffer, int index) {
+        return (buffer.get(index) & 0xFF)
+                | (buffer.get(index + 1) & 0xFF) << 8
+                | (buffer.get(index + 2) & 0xFF) << 16;
+    }
+
+    private static ImageInfo newInfo(int width, int height, String mimeType) {
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+        return new ImageInfo(width, height, mimeType, ImageInfo.ORIENTATION_NORMAL);
+    }
+}
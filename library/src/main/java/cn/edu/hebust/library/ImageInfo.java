@@ -0,0 +1,75 @@
+package cn.edu.hebust.library;
+
+/**
+ * Dimensions and type of an encoded image, known without decoding its pixels.
+ */
+public final class ImageInfo {
+
+    // EXIF orientation, 与android.media.ExifInterface中的取值相同
+    public static final int ORIENTATION_NORMAL = 1;
+    public static final int ORIENTATION_FLIP_HORIZONTAL = 2;
+    public static final int ORIENTATION_ROTATE_180 = 3;
+    public static final int ORIENTATION_FLIP_VERTICAL = 4;
+    public static final int ORIENTATION_TRANSPOSE = 5;
+    public static final int ORIENTATION_ROTATE_90 = 6;
+    public static final int ORIENTATION_TRANSVERSE = 7;
+    public static final int ORIENTATION_ROTATE_270 = 8;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final String mMimeType;
+    private final int mOrientation;
+
+    /**
+     * @param mimeType e.g. "image/jpeg", null if unknown.
+     */
+    public ImageInfo(int width, int height, String mimeType) {
+        this(width, height, mimeType, ORIENTATION_NORMAL);
+    }
+
+    /**
+     * @param orientation one of the ORIENTATION constants, how the stored
+     *                    pixels have to be transformed for display.
+     */
+    public ImageInfo(int width, int height, String mimeType, int orientation) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("width <= 0 || height <= 0");
+        }
+        if (orientation < ORIENTATION_NORMAL || orientation > ORIENTATION_ROTATE_270) {
+            throw new IllegalArgumentException("orientation: " + orientation);
+        }
+        mWidth = width;
+        mHeight = height;
+        mMimeType = mimeType;
+        mOrientation = orientation;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public String getMimeType() {
+        return mMimeType;
+    }
+
+    public int getOrientation() {
+        return mOrientation;
+    }
+
+    /**
+     * Returns true if width and height swap for display, e.g. a portrait
+     * photo stored in landscape.
+     */
+    public boolean isTransposed() {
+        return mOrientation >= ORIENTATION_TRANSPOSE;
+    }
+
+    @Override
+    public String toString() {
+        return "ImageInfo[" + mWidth + "x" + mHeight + "," + mMimeType + ",orientation=" + mOrientation + "]";
+    }
+}
@@ -1,12 +1,15 @@
 package cn.edu.hebust.library;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.util.Log;
 import android.util.LruCache;
@@ -15,20 +18,27 @@ import android.widget.ImageView;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileDescriptor;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.net.HttpURLConnection;
-import java.net.URL;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.concurrent.Executor;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by shixi_tianrui1 on 16-11-6.
@@ -42,19 +52,49 @@ public class ImageLoader {
     private static final String TAG = "ImageLoader";
 
     private static final int TAG_KEY_URI = R.id.tag_key_uri;
+    private static final int TAG_KEY_TASK = R.id.tag_key_task;
     private static final int MSG_POST_RESULT = 0x1;
 
     // ThreadPool Arguments.
     private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
-    private static final int CORE_POOL_SIZE = CPU_COUNT + 1;
-    private static final int MAXIMUM_POOL_SIZE = CPU_COUNT * 2 + 1;
+    // 网络线程大部分时间在等待IO, 解码线程与CPU核数相同即可
+    private static final int DEFAULT_NETWORK_POOL_SIZE = CPU_COUNT * 2 + 1;
+    private static final int DEFAULT_DISK_POOL_SIZE = 2;
+    private static final int DEFAULT_DECODE_POOL_SIZE = CPU_COUNT;
     private static final long KEEP_ALIVE = 10L;
 
     // LruDisk Cache 的参数
     private static final long DISK_CACHE_SIZE = 1024 * 1024 * 50; // 50MB
     private static final int IO_BUFFER_SIZE = 8 * 1024;           // 8KB
-    private static final int DISK_CACHE_INDEX = 0;
+    // 记住最近多少个uri的key, 约为几屏列表项
+    private static final int RECENT_KEY_COUNT = 128;
+    // 在内存中记住多少张图片的尺寸
+    private static final int IMAGE_INFO_COUNT = 512;
+    // 内存压力下Memory-Cache最少保留的比例(1/16), 以免列表完全无法缓存
+    private static final int MEM_CACHE_MIN_FRACTION = 16;
+    // 没有内存压力多久以后才将Memory-Cache扩大一倍
+    private static final long MEM_CACHE_RESTORE_DELAY = 30 * 1000L;   // 30s
+    static final int DISK_CACHE_INDEX = 0;
+    // 每个Disk-Cache条目的第二个值保存图片的元数据, 见ImageMetadata
+    static final int DISK_CACHE_METADATA_INDEX = 1;
+    private static final int DISK_CACHE_VALUE_COUNT = 2;
+    // 渐进显示: 至少收到这么多字节才解码第一个预览, 之后每次收到的字节翻倍时再解码
+    private static final int MIN_PREVIEW_BYTES = 16 * 1024;          // 16KB
+    private static final long MIN_PREVIEW_INTERVAL = 250;            // 250ms
+    private static final int MAX_PREVIEW_COUNT = 3;
+    // 所有下载的预览缓冲共用的内存上限, 更大的下载不缓冲在内存中解码预览
+    private static final int MAX_PREVIEW_BUFFER_SIZE = 8 * 1024 * 1024; // 8MB
+    // 预览在请求尺寸的采样率上再缩小的倍数
+    private static final int PREVIEW_SAMPLE_FACTOR = 4;
     private boolean mIsDiskLruCacheCreated = false;
+    // 下载的同时解码, 见streamBmpFromHttp
+    private final boolean mStreamingDownload;
+    // 下载时显示低分辨率的预览, 见ProgressivePreview
+    private final boolean mProgressiveRendering;
+    // 由uri计算缓存的key
+    private final KeyHasher mKeyHasher;
+    // 下载图片, 复用连接
+    private final NetworkFetcher mFetcher;
 
     private static ImageLoader sInstance;
     private Context mContext;
@@ -65,61 +105,208 @@ public class ImageLoader {
             LoaderResult result = (LoaderResult) msg.obj;
             switch (msg.what) {
                 case MSG_POST_RESULT:
-                    if (result.mIvImg.getTag().equals(result.mUri)) {
-                        result.mIvImg.setImageBitmap(result.mBmp);
+                    if (result.mUri.equals(result.mIvImg.getTag(TAG_KEY_URI))) {
+                        showBmp(result.mIvImg, result.mBmp);
                         Log.d(TAG, "handleMessage: bind bitmap success");
                     } else {
                         Log.d(TAG, "handleMessage: tag has changed, can't bind this bitmap.");
                     }
+                    // the message's own reference, see LoadTask#finish
+                    releaseBmp(result.mBmp);
                     break;
             }
         }
     };
 
-    // for create workerThread.
-    private static final ThreadFactory sThreadFactory = new ThreadFactory() {
-        private AtomicInteger mCount = new AtomicInteger(1);
-
+    /**
+     * The order in which queued loads are started: higher priority first,
+     * and the most recent request first within one priority.
+     */
+    private static final Comparator<Runnable> sTaskComparator = new Comparator<Runnable>() {
         @Override
-        public Thread newThread(@NonNull Runnable r) {
-            return new Thread(r, "ImageLoader# " + mCount.getAndIncrement());
+        public int compare(Runnable lhs, Runnable rhs) {
+            LoadTask l = (LoadTask) lhs;
+            LoadTask r = (LoadTask) rhs;
+            if (l.mPriority != r.mPriority) {
+                return l.mPriority.ordinal() - r.mPriority.ordinal();
+            }
+            return l.mSequence > r.mSequence ? -1 : (l.mSequence == r.mSequence ? 0 : 1);
         }
     };
 
-    // ThreadPool
-    private static final Executor THREAD_POOL_EXECUTOR = new ThreadPoolExecutor(
-            CORE_POOL_SIZE, MAXIMUM_POOL_SIZE,
-            KEEP_ALIVE, TimeUnit.SECONDS,
-            new LinkedBlockingQueue<Runnable>(), sThreadFactory);
+    /**
+     * Creates the pool of one pipeline stage. The queue is unbounded, so the
+     * pool never grows beyond its core size; idle threads time out.
+     *
+     * @param order the order of the queued tasks, which it casts to its own task class.
+     */
+    private static ThreadPoolExecutor newStageExecutor(final String stage, int poolSize,
+                                                       Comparator<Runnable> order) {
+        // for create workerThread.
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private AtomicInteger mCount = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(@NonNull Runnable r) {
+                return new Thread(r, "ImageLoader-" + stage + "# " + mCount.getAndIncrement());
+            }
+        };
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                poolSize, poolSize,
+                KEEP_ALIVE, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(11, order), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static final AtomicLong sTaskSequence = new AtomicLong();
+
+    /**
+     * Priority of a load request. Loads for visible views always run first.
+     */
+    public enum Priority {
+        /** The image is shown on screen right now. */
+        VISIBLE(0),
+        /** The image is expected to come on screen soon. */
+        PREFETCH(3000),
+        /** Nobody is waiting for the image. */
+        BACKGROUND(15000);
+
+        // 在队列中等待超过此时间的任务会被丢弃, 0表示不限
+        private final long mMaxQueuedMillis;
+
+        Priority(long maxQueuedMillis) {
+            mMaxQueuedMillis = maxQueuedMillis;
+        }
+    }
 
 
     /**
      * MemoryCache by {@link android.util.LruCache}
      */
-    private final LruCache<String, Bitmap> mMemCache;
+    private final MemoryCache<String, Bitmap> mMemCache;
+    // Memory-Cache不受内存压力时的大小
+    private final int mMemCacheMaxSize;
+    // 最近一次因内存压力缩小Memory-Cache或将其恢复一步的时间, 见restoreMemCacheSize
+    private volatile long mMemCacheResizeTime;
     private DiskLruCache mDiskLruCache;
 
-    private ImageResizer mResizer = new ImageResizer();
+    /**
+     * Bitmaps evicted from Memory-Cache, reused by later decodes.
+     */
+    private final BitmapPool mBitmapPool;
+    private final ImageResizer mResizer;
+    // 解码Disk-Cache中的图片, 默认为mResizer
+    private final Decoder<Bitmap> mDecoder;
+
+    /**
+     * Bitmaps which an ImageView shows or which are on their way to one, with
+     * their number of users. These are never handed to the BitmapPool.
+     * Guarded by itself, which also guards the active tier below.
+     */
+    private final Map<Bitmap, Integer> mBitmapUsers = new WeakHashMap<Bitmap, Integer>();
+    /**
+     * Active tier of Memory-Cache: cached bitmaps which are in use, keyed by
+     * variant key. They are pinned in mMemCache, see {@link MemoryCache#pin}:
+     * their keys keep their place with its eviction policy, which sees the
+     * hits while they are shown, but they neither count against its size nor
+     * get evicted. The bitmaps are only weakly reachable from here: once no
+     * view shows them they move back into mMemCache, or are collected
+     * together with a view which was never rebound.
+     */
+    private final Map<String, ActiveBitmapRef> mActiveBitmaps = new HashMap<String, ActiveBitmapRef>();
+    // 已缓存的Bitmap对应的variant key, 两层缓存中都有
+    private final Map<Bitmap, String> mCachedBitmapKeys = new WeakHashMap<Bitmap, String>();
+    private final ReferenceQueue<Bitmap> mActiveBitmapQueue = new ReferenceQueue<Bitmap>();
+    // 在活动层中命中的次数
+    private int mActiveHitCount;
+    // 由ImageLoader设置到ImageView上的Bitmap, 只在UI线程访问
+    private final Map<ImageView, Bitmap> mBoundBitmaps = new WeakHashMap<ImageView, Bitmap>();
+
+    // Pipeline: disk lookup >> network download >> decode, each stage has its own pool.
+    private final ThreadPoolExecutor mDiskExecutor;
+    private final ThreadPoolExecutor mNetworkExecutor;
+    private final ThreadPoolExecutor mDecodeExecutor;
+    // Opens TiledImages and decodes their tiles.
+    private final ThreadPoolExecutor mTileExecutor;
+
+    // Memory-Cache中每张图片已解码的各个尺寸
+    private final BitmapVariants mBitmapVariants = new BitmapVariants();
+    // Disk-Cache中图片的尺寸和格式, 以key区分
+    private final LruCache<String, ImageInfo> mImageInfos = new LruCache<String, ImageInfo>(IMAGE_INFO_COUNT);
+
+    /**
+     * Loads which are queued or running, keyed by {@link #hashKeyFromUri(String)}.
+     * Loads of the same uri at other sizes wait as followers of the load in
+     * this table, see {@link LoadTask#mFollowers}. Guarded by itself.
+     */
+    private final Map<String, LoadTask> mInFlightTasks = new HashMap<String, LoadTask>();
+    // 正在后台重新验证的过期条目, 见revalidateInBackground. Guarded by mInFlightTasks.
+    private final Set<String> mRevalidatingKeys = new HashSet<String>();
+    // 合并到已有加载任务中的请求数
+    private final AtomicInteger mMergedRequestCount = new AtomicInteger();
+    // 因ImageView被重新绑定而取消的加载任务数
+    private final AtomicInteger mCancelledTaskCount = new AtomicInteger();
+    // 预览缓冲还可以占用的字节数, 网络线程并发下载时共用, 见ProgressivePreview
+    private final AtomicInteger mPreviewBudget = new AtomicInteger();
 
-    private ImageLoader(Context context) {
+    private ImageLoader(Context context, Config config) {
         mContext = context.getApplicationContext();
+        mStreamingDownload = config.mStreamingDownload;
+        mProgressiveRendering = config.mProgressiveRendering;
+        mKeyHasher = new KeyHasher(config.mKeyAlgorithm, RECENT_KEY_COUNT);
+        mFetcher = config.mFetcher != null ? config.mFetcher
+                : new HttpUrlFetcher(config.mConnectTimeout, config.mReadTimeout, config.mMaxRequestsPerHost);
+        mDiskExecutor = newStageExecutor("disk", config.mDiskPoolSize, sTaskComparator);
+        mNetworkExecutor = newStageExecutor("network", config.mNetworkPoolSize, sTaskComparator);
+        mDecodeExecutor = newStageExecutor("decode", config.mDecodePoolSize, sTaskComparator);
+        // BitmapRegionDecoder一次只解码一个区域, 一个线程即可
+        mTileExecutor = newStageExecutor("tile", 1, TiledImage.JOB_ORDER);
         // 获取此进程允许的最大内存
         int maxMemory = (int) Runtime.getRuntime().maxMemory();
-        int cacheSize = maxMemory / 8;
-        mMemCache = new LruCache<String, Bitmap>(cacheSize) {
+        mMemCacheMaxSize = maxMemory / 8;
+        mMemCache = new MemoryCache<String, Bitmap>(mMemCacheMaxSize,
+                EvictionPolicy.<String>create(config.mMemCachePolicy)) {
             @Override
             protected int sizeOf(String key, Bitmap value) {
-                // 转换成KB
-                return value.getRowBytes() * value.getHeight() / 1024;
+                // 以字节为单位, 与maxMemory一致
+                return BitmapPool.getSize(value);
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                if (newValue == null) {
+                    onMemCacheRemoved(key, oldValue, evicted);
+                }
             }
         };
+        mBitmapPool = new BitmapPool(maxMemory / 16);
+        mPreviewBudget.set(Math.min(MAX_PREVIEW_BUFFER_SIZE, maxMemory / 32));
+        mContext.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                trimMemory(level);
+            }
+
+            @Override
+            public void onLowMemory() {
+                trimMemory(TRIM_MEMORY_COMPLETE);
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+            }
+        });
+        mResizer = new ImageResizer(mBitmapPool);
+        mDecoder = config.mDecoder != null ? config.mDecoder : mResizer;
         // 初始化磁盘缓存
         File diskCacheDir = getDiskDir(mContext, "bitmap");
         if (!diskCacheDir.exists()) {
             diskCacheDir.mkdirs();
         }
         try {
-            mDiskLruCache = DiskLruCache.open(diskCacheDir, 1, 1, DISK_CACHE_SIZE);
+            mDiskLruCache = DiskLruCache.open(diskCacheDir, 1, DISK_CACHE_VALUE_COUNT, DISK_CACHE_SIZE,
+                    config.mDiskCacheOptions);
             mIsDiskLruCacheCreated = true;
         } catch (IOException e) {
             Log.e(TAG, "ImageLoader: DiskLruCache initial fail.");
@@ -143,10 +330,18 @@ public class ImageLoader {
     }
 
     public static ImageLoader getInstance(Context context) {
+        return getInstance(context, new Config());
+    }
+
+    /**
+     * Returns the ImageLoader, creating it with {@code config} on the first call.
+     * The config of later calls is ignored.
+     */
+    public static ImageLoader getInstance(Context context, Config config) {
         if (sInstance == null) {
             synchronized (ImageLoader.class) {
                 if (sInstance == null) {
-                    sInstance = new ImageLoader(context);
+                    sInstance = new ImageLoader(context, config);
                 }
             }
         }
@@ -164,214 +359,1041 @@ public class ImageLoader {
      * @param reqHeight the height imageView desired.
      */
     public void bindBmp(final String uri, final ImageView imageView, final int reqWidth, final int reqHeight) {
+        bindBmp(uri, imageView, reqWidth, reqHeight, Priority.VISIBLE);
+    }
+
+    /**
+     * Async load bitmap from memory-cache or disk-cache or network.
+     * Note: Must run in UI-Thread;
+     *
+     * @param uri       Http url.
+     * @param imageView bitmap 's bind object.
+     * @param reqWidth  the width imageView desired.
+     * @param reqHeight the height imageView desired.
+     * @param priority  how urgently the bitmap is needed.
+     */
+    public void bindBmp(final String uri, final ImageView imageView, final int reqWidth, final int reqHeight,
+                        final Priority priority) {
         imageView.setTag(TAG_KEY_URI, uri);
+        final String key = hashKeyFromUri(uri);
+        // the view may still wait for the load of the uri it was bound to before
+        cancelStaleTask(imageView, key);
         // from Memory-Cache
-        final Bitmap bitmap = loadBitmapFromMemCache(uri);
+        final Bitmap bitmap = getBmpFromMemCache(key, reqWidth, reqHeight);
         if (bitmap != null) {
-            imageView.setImageBitmap(bitmap);
+            showBmp(imageView, bitmap);
+            releaseBmp(bitmap);
             return;
         }
 
-        // from Disk-Cache or Network in workerThread
-        Runnable loadBmpTask = new Runnable() {
-            @Override
-            public void run() {
-                Bitmap target = loadBitmapAsync(uri, reqWidth, reqHeight);
-                if (target != null) {
-                    LoaderResult result = new LoaderResult(imageView, uri, target);
-                    Message msg = mMainHandler.obtainMessage(MSG_POST_RESULT, result);
-                    msg.sendToTarget();
-                }
+        // from Disk-Cache or Network in workerThread,
+        // a request for an uri which is already loading just waits for that load.
+        LoadTask task;
+        synchronized (mInFlightTasks) {
+            LoadTask primary = mInFlightTasks.get(key);
+            task = primary != null ? primary.findLoad(reqWidth, reqHeight, true) : null;
+            if (task != null) {
+                task.addTarget(imageView);
+                imageView.setTag(TAG_KEY_TASK, task);
+                mMergedRequestCount.incrementAndGet();
+                Log.d(TAG, "bindBmp: merged into in-flight load of " + uri);
+                reviveIfCancelled(task);
+                requeue(task, priority);
+                return;
             }
-        };
+            task = new LoadTask(key, uri, reqWidth, reqHeight, priority, true);
+            task.addTarget(imageView);
+            imageView.setTag(TAG_KEY_TASK, task);
+            startLoad(task, primary);
+        }
+    }
 
-        THREAD_POOL_EXECUTOR.execute(loadBmpTask);
+    /**
+     * Loads the image of {@code uri} into Disk-Cache and Memory-Cache before
+     * any ImageView needs it, e.g. for list items which are about to come on
+     * screen. A later {@link #bindBmp} of the uri at the same size is served
+     * from Memory-Cache or waits for the prefetch.
+     *
+     * @param priority  usually {@link Priority#PREFETCH}.
+     * @see #cancelPrefetch(String, int, int)
+     */
+    public void prefetch(String uri, int reqWidth, int reqHeight, Priority priority) {
+        prefetch(uri, reqWidth, reqHeight, priority, true);
     }
 
-    // Memory-Cache >> Disk-Cache >> Network
-    private Bitmap loadBitmapAsync(String uri, int reqWidth, int reqHeight) {
-        Bitmap bitmap = loadBitmapFromMemCache(uri);
-        if (bitmap != null)
-            return bitmap;
-        try {
-            bitmap = loadBmpFromDisk(uri, reqWidth, reqHeight);
-            if (bitmap != null)
-                return bitmap;
-            bitmap = loadBmpFromHttp(uri, reqWidth, reqHeight);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        // 从网络中获取图片
-        if (bitmap == null && !mIsDiskLruCacheCreated)
-            bitmap = downloadBmpFromNet(uri);
-        return bitmap;
+    /**
+     * Downloads the image of {@code uri} into Disk-Cache without decoding it,
+     * cheaper than {@link #prefetch(String, int, int, Priority)} for images
+     * which may never be shown.
+     *
+     * @see #cancelPrefetchToDisk(String)
+     */
+    public void prefetchToDisk(String uri, Priority priority) {
+        prefetch(uri, 0, 0, priority, false);
     }
 
+    /**
+     * Withdraws one {@link #prefetch(String, int, int, Priority)} of {@code uri}.
+     * The load is cancelled if nothing else waits for it.
+     */
+    public void cancelPrefetch(String uri, int reqWidth, int reqHeight) {
+        cancelPrefetch(uri, reqWidth, reqHeight, true);
+    }
 
     /**
-     * 从网络中取图片
+     * Withdraws one {@link #prefetchToDisk(String, Priority)} of {@code uri}.
      */
-    private Bitmap loadBmpFromHttp(String uri, int reqWidth, int reqHeight) throws IOException {
-        if (Looper.myLooper() == Looper.getMainLooper()) {
-            throw new RuntimeException("Can't visit Network in UI-Thread");
+    public void cancelPrefetchToDisk(String uri) {
+        cancelPrefetch(uri, 0, 0, false);
+    }
+
+    private void prefetch(String uri, int reqWidth, int reqHeight, Priority priority, boolean decode) {
+        String key = hashKeyFromUri(uri);
+        // 已解码过的尺寸不再预取, 不影响Memory-Cache的访问统计
+        if (decode && mBitmapVariants.find(key, reqWidth, reqHeight) != null) {
+            return;
         }
-        if (mDiskLruCache == null) {
-            return null;
+        synchronized (mInFlightTasks) {
+            LoadTask primary = mInFlightTasks.get(key);
+            if (!decode && primary != null && !primary.mCancelled) {
+                // any load of the uri puts it into Disk-Cache
+                return;
+            }
+            LoadTask task = primary != null ? primary.findLoad(reqWidth, reqHeight, decode) : null;
+            if (task != null) {
+                task.mPrefetchCount++;
+                reviveIfCancelled(task);
+                requeue(task, priority);
+                return;
+            }
+            task = new LoadTask(key, uri, reqWidth, reqHeight, priority, decode);
+            task.mPrefetchCount = 1;
+            startLoad(task, primary);
         }
+    }
 
+    private void cancelPrefetch(String uri, int reqWidth, int reqHeight, boolean decode) {
         String key = hashKeyFromUri(uri);
-        DiskLruCache.Editor editor = mDiskLruCache.edit(key);
-        if (editor != null) {
-            OutputStream outputStream = editor.newOutputStream(DISK_CACHE_INDEX);
-            if (downloadUrlToStream(uri, outputStream)) {
-                editor.commit();
-            } else {
-                editor.abort();
+        boolean cancelled;
+        synchronized (mInFlightTasks) {
+            LoadTask primary = mInFlightTasks.get(key);
+            LoadTask task = primary != null ? primary.findLoad(reqWidth, reqHeight, decode) : null;
+            if (task == null || task.mPrefetchCount == 0) {
+                // finished already
+                return;
             }
-            mDiskLruCache.flush();
+            task.mPrefetchCount--;
+            cancelled = cancelIfUnwanted(task);
+        }
+        if (cancelled) {
+            mCancelledTaskCount.incrementAndGet();
+            Log.d(TAG, "cancelPrefetch: cancel load of " + uri);
         }
-        return loadBmpFromDisk(uri, reqWidth, reqHeight);
     }
 
+    /**
+     * Queues a new load, or lets it follow {@code primary}, the in-flight
+     * load of the same uri at another size. Must hold mInFlightTasks.
+     */
+    private void startLoad(LoadTask task, LoadTask primary) {
+        if (primary == null) {
+            mInFlightTasks.put(task.mKey, task);
+            task.moveTo(STAGE_DISK);
+        } else {
+            // another size of this uri is loading, start from its Disk-Cache entry afterwards
+            task.mPrimary = primary;
+            primary.mFollowers.add(task);
+        }
+    }
 
     /**
-     * 将网络中的Uri资源使用
+     * Raises the priority of a load to {@code priority} if it is lower, the
+     * later stages of a running load are queued with it. A load which is
+     * still queued moves to the front of its priority. Must hold mInFlightTasks.
      */
-    private boolean downloadUrlToStream(String urlStr, OutputStream os) {
-        HttpURLConnection conn = null;
-        BufferedOutputStream bos = null;
-        BufferedInputStream bis = null;
-        try {
-            final URL url = new URL(urlStr);
-            conn = (HttpURLConnection) url.openConnection();
-            bis = new BufferedInputStream(conn.getInputStream());
-            bos = new BufferedOutputStream(os, IO_BUFFER_SIZE);
+    private void requeue(LoadTask task, Priority priority) {
+        ThreadPoolExecutor executor = task.stageExecutor();
+        // the queue orders by mPriority, it only changes while the task is out of the queue
+        boolean queued = executor.remove(task);
+        if (priority.ordinal() < task.mPriority.ordinal()) {
+            task.mPriority = priority;
+        }
+        if (queued) {
+            task.mSequence = sTaskSequence.getAndIncrement();
+            task.mEnqueueTime = SystemClock.uptimeMillis();
+            executor.execute(task);
+        }
+    }
 
-            int buf;
-            while ((buf = bis.read()) != -1) {
-                bos.write(buf);
-            }
-            return true;
+    /**
+     * Detaches {@code imageView} from the load it was bound to, unless that load
+     * is for {@code key}. A load which has no ImageView left is cancelled, see
+     * {@link #cancelIfUnwanted(LoadTask)}.
+     */
+    private void cancelStaleTask(ImageView imageView, String key) {
+        LoadTask staleTask = (LoadTask) imageView.getTag(TAG_KEY_TASK);
+        if (staleTask == null || staleTask.mKey.equals(key)) {
+            return;
+        }
+        imageView.setTag(TAG_KEY_TASK, null);
+        boolean cancelled;
+        synchronized (mInFlightTasks) {
+            staleTask.mTargets.remove(imageView);
+            cancelled = cancelIfUnwanted(staleTask);
+        }
+        if (cancelled) {
+            mCancelledTaskCount.incrementAndGet();
+            Log.d(TAG, "cancelStaleTask: cancel load of " + staleTask.mUri);
+        }
+    }
 
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            if (conn != null) {
-                conn.disconnect();
-            }
-            try {
-                if (bis != null) {
-                    bis.close();
-                }
-                if (bos != null) {
-                    bos.close();
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
+    /**
+     * Cancels {@code task} if neither an ImageView, a prefetch nor a TiledImage
+     * waits for it: it is dropped from the queue if it hasn't started yet,
+     * otherwise it stops at the next stage boundary. A running load stays in mInFlightTasks until
+     * then, it may hold the Disk-Cache editor of its key. Must hold mInFlightTasks.
+     *
+     * @return true if the task was cancelled.
+     */
+    private boolean cancelIfUnwanted(LoadTask task) {
+        if (!task.mTargets.isEmpty() || task.mPrefetchCount > 0 || !task.mDiskListeners.isEmpty()
+                || task.mCancelled) {
+            return false;
+        }
+        if (task.mPrimary != null) {
+            // a follower hasn't been queued yet
+            task.mPrimary.mFollowers.remove(task);
+            task.mPrimary = null;
+        } else if (!task.mFollowers.isEmpty()) {
+            // its followers still need the download
+            return false;
+        }
+        task.mCancelled = true;
+        if (task.stageExecutor().remove(task)) {
+            // never runs again, release what it holds
+            if (mInFlightTasks.get(task.mKey) == task) {
+                mInFlightTasks.remove(task.mKey);
             }
+            task.closeSnapshot();
         }
-        return false;
+        return true;
     }
 
     /**
-     * 从硬盘缓存中加载图片
+     * Takes back the cancellation of a load which is still running, a new
+     * request for its uri waits for it again instead of missing the
+     * Disk-Cache entry it is writing. Must hold mInFlightTasks.
      */
-    private Bitmap loadBmpFromDisk(String uri, int reqWidth, int reqHeight) throws IOException {
-        // 判断当前线程
-        if (Looper.myLooper() == Looper.getMainLooper()) {
-            Log.w(TAG, "loadBmpFromDisk: in UI-Thread isn't recommend!");
+    private void reviveIfCancelled(LoadTask task) {
+        if (task.mCancelled) {
+            task.mCancelled = false;
+            Log.d(TAG, "reviveIfCancelled: resume load of " + task.mUri);
         }
+    }
+
+    /**
+     * Returns the number of requests which were attached to an in-flight load
+     * instead of starting a load of their own.
+     */
+    public int getMergedRequestCount() {
+        return mMergedRequestCount.get();
+    }
+
+    /**
+     * Returns the number of loads which were cancelled because every ImageView
+     * waiting for them was bound to another uri and their prefetches were cancelled.
+     */
+    public int getCancelledTaskCount() {
+        return mCancelledTaskCount.get();
+    }
+
+    /**
+     * Returns the metadata of the image of {@code uri} in the Disk-Cache
+     * without decoding it, or null if it isn't cached. Touches the disk.
+     */
+    public ImageMetadata getDiskCacheMetadata(String uri) throws IOException {
         if (mDiskLruCache == null) {
             return null;
         }
+        DiskLruCache.Snapshot snapshot = mDiskLruCache.get(hashKeyFromUri(uri));
+        if (snapshot == null) {
+            return null;
+        }
+        try {
+            return ImageMetadata.decode(snapshot.getString(DISK_CACHE_METADATA_INDEX));
+        } finally {
+            snapshot.close();
+        }
+    }
 
-        Bitmap bitmap = null;
-        String key = hashKeyFromUri(uri);
-        DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
-        if (snapshot != null) {
-            FileInputStream fis = (FileInputStream) snapshot.getInputStream(DISK_CACHE_INDEX);
-            FileDescriptor fd = fis.getFD();
-            bitmap = mResizer.decodeSampledBmpFromFD(fd, reqWidth, reqHeight);
-            if (bitmap != null) {
-                addBmpToMemCache(key, bitmap);
-            }
+    /**
+     * Shrinks Memory-Cache and the Bitmap pool for the memory pressure
+     * {@code level}, one of the TRIM_MEMORY levels of {@link ComponentCallbacks2}.
+     * Called by the system, the cache grows back step by step once no trim
+     * has been requested for a while.
+     */
+    public void trimMemory(int level) {
+        // Memory-Cache和Bitmap池保留的比例, 单位1/4
+        int quarters;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            // 进程在后台进程列表中间, 随时可能被杀死
+            quarters = 0;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            quarters = 1;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            quarters = 2;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            quarters = 1;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            quarters = 2;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            quarters = 3;
+        } else {
+            return;
         }
-        return bitmap;
+        Log.d(TAG, "trimMemory: level=" + level + " keep " + quarters + "/4");
+        mMemCacheResizeTime = SystemClock.uptimeMillis();
+        if (quarters == 0) {
+            mMemCache.evictAll();
+            mMemCache.resize(Math.min(mMemCache.maxSize(), mMemCacheMaxSize / MEM_CACHE_MIN_FRACTION));
+            mBitmapPool.clear();
+            return;
+        }
+        int maxSize = (int) ((long) mMemCacheMaxSize * quarters / 4);
+        // 已经缩小到更小时保持不变
+        mMemCache.resize(Math.min(mMemCache.maxSize(), maxSize));
+        // 淘汰的Bitmap进入了池中, 最后再缩小池
+        mBitmapPool.trimToSize((int) ((long) mBitmapPool.maxSize() * quarters / 4));
+    }
+
+    /**
+     * Doubles the size of a shrunk Memory-Cache, at most once per
+     * {@link #MEM_CACHE_RESTORE_DELAY} without memory pressure.
+     */
+    private void restoreMemCacheSize() {
+        int maxSize = mMemCache.maxSize();
+        if (maxSize >= mMemCacheMaxSize) {
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        if (now - mMemCacheResizeTime < MEM_CACHE_RESTORE_DELAY) {
+            return;
+        }
+        mMemCacheResizeTime = now;
+        mMemCache.resize((int) Math.min(mMemCacheMaxSize, (long) maxSize * 2));
+        Log.d(TAG, "restoreMemCacheSize: " + mMemCache);
+    }
+
+    /**
+     * Returns the BitmapPool which decodes reuse evicted bitmaps from, e.g. for its statistics.
+     */
+    public BitmapPool getBitmapPool() {
+        return mBitmapPool;
     }
 
+    /**
+     * Opens the image of {@code uri} for decoding by tiles, for images too
+     * large to be decoded whole, e.g. to zoom into a photo. The image is
+     * downloaded into Disk-Cache first if it isn't there, by the load of the
+     * uri which is in flight if there is one. Must run in UI-Thread.
+     *
+     * @param callback told when the image is ready and when tiles arrive.
+     * @return the image, close it when it is no longer shown.
+     */
+    public TiledImage openTiledImage(String uri, TiledImage.Callback callback) {
+        TiledImage image = new TiledImage(this, mTileExecutor, uri, hashKeyFromUri(uri), callback);
+        image.open();
+        return image;
+    }
 
     /**
-     * 存入Memory-Cache
+     * Runs {@code listener} once the image of {@code uri} is in Disk-Cache,
+     * or its load failed, on the thread which ends the load. Waits for the
+     * load of the uri which is in flight, else starts one which only
+     * downloads, like {@link #prefetchToDisk(String, Priority)}.
+     *
+     * @see #cancelLoadToDisk(String, Runnable)
      */
-    private void addBmpToMemCache(String key, Bitmap bitmap) {
-        if (mMemCache.get(key) == null) {
-            mMemCache.put(key, bitmap);
+    void loadToDisk(String uri, String key, Runnable listener) {
+        synchronized (mInFlightTasks) {
+            LoadTask task = mInFlightTasks.get(key);
+            if (task != null) {
+                mMergedRequestCount.incrementAndGet();
+                reviveIfCancelled(task);
+                requeue(task, Priority.VISIBLE);
+            } else {
+                task = new LoadTask(key, uri, 0, 0, Priority.VISIBLE, false);
+                startLoad(task, null);
+            }
+            task.mDiskListeners.add(listener);
         }
     }
 
+    /**
+     * Withdraws a {@link #loadToDisk(String, String, Runnable)} which hasn't
+     * run its listener yet. The load is cancelled if nothing else waits for it.
+     */
+    void cancelLoadToDisk(String key, Runnable listener) {
+        boolean cancelled;
+        synchronized (mInFlightTasks) {
+            LoadTask task = mInFlightTasks.get(key);
+            if (task == null || !task.mDiskListeners.remove(listener)) {
+                // finished already
+                return;
+            }
+            cancelled = cancelIfUnwanted(task);
+        }
+        if (cancelled) {
+            mCancelledTaskCount.incrementAndGet();
+            Log.d(TAG, "cancelLoadToDisk: cancel load of " + key);
+        }
+    }
 
     /**
-     * Load bitmap from LruCache.
+     * Returns the Disk-Cache entry {@code key}, or null if it isn't cached.
+     * Touches the disk.
      */
-    private Bitmap loadBitmapFromMemCache(String uri) {
-        final String key = hashKeyFromUri(uri);
-        return mMemCache.get(key);
+    DiskLruCache.Snapshot getDiskSnapshot(String key) throws IOException {
+        return mDiskLruCache != null ? mDiskLruCache.get(key) : null;
     }
 
-    private String hashKeyFromUri(String uri) {
-        String cacheKey;
+    /**
+     * Disk stage: Memory-Cache >> Disk-Cache, on a miss the task moves on to
+     * the network stage, on a hit to the decode stage.
+     */
+    private void runDiskStage(LoadTask task) throws IOException {
+        if (task.mDecode) {
+            Bitmap bitmap = getBmpFromMemCache(task.mKey, task.mReqWidth, task.mReqHeight);
+            if (bitmap != null) {
+                task.finish(bitmap);
+                return;
+            }
+        }
+        if (mDiskLruCache != null) {
+            task.mSnapshot = mDiskLruCache.get(task.mKey);
+        }
+        if (task.mSnapshot != null) {
+            task.mMetadata = ImageMetadata.decode(task.mSnapshot.getString(DISK_CACHE_METADATA_INDEX));
+            if (task.mMetadata.isStale(System.currentTimeMillis())) {
+                // 先使用过期的图片, 同时在后台向服务器验证
+                revalidateInBackground(task.mUri, task.mKey, task.mMetadata);
+            }
+        }
+        if (!task.mDecode && (task.mSnapshot != null || mDiskLruCache == null)) {
+            // 只预取到Disk-Cache, 已经存在或无处可存
+            task.finish(null);
+            return;
+        }
+        task.moveTo(task.mSnapshot != null ? STAGE_DECODE : STAGE_NETWORK);
+    }
+
+    /**
+     * Network stage: download into Disk-Cache and hand the entry to the
+     * decode stage, or decode right here if there is no Disk-Cache. In
+     * streaming mode the download is decoded while it is written to Disk-Cache,
+     * in progressive mode previews of it are shown while it arrives.
+     */
+    private void runNetworkStage(LoadTask task) throws IOException {
+        if (task.mStaleMetadata != null) {
+            revalidate(task.mUri, task.mKey, task.mStaleMetadata);
+            task.finish(null);
+            return;
+        }
+        if (!task.mDecode) {
+            loadBmpFromHttp(task.mUri, task.mKey, null);
+            task.finish(null);
+            return;
+        }
+        if (mIsDiskLruCacheCreated) {
+            // 边下载边解码依赖BitmapFactory, 使用其他Decoder时下载完成后再解码
+            if (mStreamingDownload && !mProgressiveRendering && mDecoder == mResizer) {
+                Bitmap bitmap = streamBmpFromHttp(task.mUri, task.mKey, task.mReqWidth, task.mReqHeight);
+                if (bitmap != null) {
+                    task.finish(bitmap);
+                    return;
+                }
+                // not decoded while downloading, decode whatever made it into Disk-Cache
+                task.mSnapshot = mDiskLruCache.get(task.mKey);
+            } else if (loadBmpFromHttp(task.mUri, task.mKey,
+                    mProgressiveRendering ? new ProgressivePreview(task) : null)) {
+                task.mSnapshot = mDiskLruCache.get(task.mKey);
+            }
+            if (task.mSnapshot != null) {
+                task.moveTo(STAGE_DECODE);
+                return;
+            }
+        } else {
+            // 从网络中获取图片
+            Bitmap bitmap = downloadBmpFromNet(task.mUri);
+            if (bitmap != null) {
+                retainBmp(bitmap);
+            }
+            task.finish(bitmap);
+            return;
+        }
+        task.finish(null);
+    }
+
+    /**
+     * Decode stage: decode the Disk-Cache entry and put it into Memory-Cache.
+     */
+    private void runDecodeStage(LoadTask task) throws IOException {
+        Bitmap bitmap;
         try {
-            final MessageDigest messageDigest = MessageDigest.getInstance("MD5");
-            messageDigest.update(uri.getBytes());
-            // bytes transfer to HexString
-            cacheKey = byteToHexString(messageDigest.digest());// todo why
-        } catch (NoSuchAlgorithmException e) {
-            cacheKey = String.valueOf(uri.hashCode());
+            bitmap = loadBmpFromDisk(task.mKey, task.mSnapshot, task.mMetadata, task.mReqWidth, task.mReqHeight);
+        } finally {
+            task.closeSnapshot();
         }
-        return cacheKey;
+        task.finish(bitmap);
     }
 
-    private String byteToHexString(byte[] bytes) {
 
-        StringBuilder sb = new StringBuilder();
-        for (byte aByte : bytes) {
-            String hex = Integer.toHexString(0xFF & aByte);
-            if (hex.length() == 1) {
-                sb.append("0");
-            }
-            sb.append(hex);
+    /**
+     * 从网络中取图片, 存入Disk-Cache
+     *
+     * @param preview shows previews of the download, may be null.
+     * @return true if the disk cache holds the image afterwards.
+     */
+    private boolean loadBmpFromHttp(String uri, String key, ProgressivePreview preview) throws IOException {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            throw new RuntimeException("Can't visit Network in UI-Thread");
+        }
+        if (mDiskLruCache == null) {
+            return false;
+        }
+
+        boolean committed = false;
+        DiskLruCache.Editor editor = mDiskLruCache.edit(key);
+        if (editor != null) {
+            committed = EntryDownloader.download(mFetcher, uri, editor, preview);
+            mDiskLruCache.flush();
         }
-        return sb.toString();
+        // 其他线程正在写入时editor为null, 交由后续的磁盘读取判断
+        return committed || editor == null;
     }
 
 
     /**
-     * Loading target Bitmap by using {@link HttpURLConnection},
-     * this operation can't in MainThread.
+     * 从网络中取图片, 一边写入Disk-Cache一边解码, 最后一个字节到达时图片也已解码,
+     * 不需要再从硬盘读取一遍. 返回的Bitmap已被调用者引用, 见{@link #retainBmp(Bitmap)}
      *
-     * @param uri An Uri for this bitmap from web.
-     * @return Loaded bitmap.
+     * @return null if the image wasn't decoded while downloading, the Disk-Cache
+     * may hold it anyway, e.g. when another thread is writing it.
      */
-    public Bitmap downloadBmpFromNet(String uri) {
+    private Bitmap streamBmpFromHttp(String uri, String key, int reqWidth, int reqHeight) throws IOException {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            throw new RuntimeException("Can't visit Network in UI-Thread");
+        }
+        DiskLruCache.Editor editor = mDiskLruCache.edit(key);
+        if (editor == null) {
+            return null;
+        }
+        if (editor.getPartialLength(DISK_CACHE_INDEX) > 0) {
+            // 只下载上次中断后剩余的部分, 完成后从硬盘解码
+            EntryDownloader.download(mFetcher, uri, editor, null);
+            mDiskLruCache.flush();
+            return null;
+        }
+
         Bitmap bitmap = null;
-        HttpURLConnection connection = null;
-        BufferedInputStream bis = null;
+        ImageInfo info = null;
+        boolean committed = false;
+        NetworkFetcher.Response response = null;
+        OutputStream os = null;
+        InputStream is = null;
+        TeeInputStream tee = null;
         try {
-            URL url = new URL(uri);
-            connection = (HttpURLConnection) url.openConnection();
-            bis = new BufferedInputStream(connection.getInputStream());
-            bitmap = BitmapFactory.decodeStream(bis);
+            response = mFetcher.fetch(uri, null);
+            if (response.getCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP " + response.getCode() + ": " + uri);
+            }
+            os = new BufferedOutputStream(editor.newOutputStream(DISK_CACHE_INDEX), IO_BUFFER_SIZE);
+            tee = new TeeInputStream(response.getBody(), os, IO_BUFFER_SIZE);
+            // 读取尺寸时缓冲的字节已写入Disk-Cache, reset后不会再写一次
+            is = new BufferedInputStream(tee, IO_BUFFER_SIZE);
+            info = ImageHeaderParser.parse(is, ImageHeaderParser.MAX_HEADER_SIZE);
+            try {
+                bitmap = mResizer.decodeSampledBmpFromStream(is, info, reqWidth, reqHeight);
+            } catch (IOException e) {
+                Log.w(TAG, "streamBmpFromHttp: can't decode while downloading " + uri, e);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "streamBmpFromHttp: can't decode while downloading " + uri, e);
+            }
+            // 解码器未读取的剩余字节
+            tee.drain();
+            os.close();
+            os = null;
+            ImageMetadata.Builder metadata = new ImageMetadata.Builder()
+                    .setImageInfo(info)
+                    .setByteCount(tee.getCount());
+            EntryDownloader.setResponseMetadata(metadata, response);
+            editor.set(DISK_CACHE_METADATA_INDEX, metadata.build().encode());
+            editor.commit();
+            committed = true;
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
-            if (connection != null) {
-                connection.disconnect();
-            }
-            if (bis != null) {
-                try {
-                    bis.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+            try {
+                if (is != null) {
+                    is.close();
+                }
+                if (os != null) {
+                    os.close();
+                }
+                if (response != null) {
+                    // 读完剩余的响应体, 连接留给下一次请求
+                    response.close();
+                }
+                if (!committed) {
+                    if (tee != null && tee.getCount() > 0 && EntryDownloader.isResumable(response)) {
+                        EntryDownloader.keepPartial(editor, new ImageMetadata.Builder(), response);
+                        Log.d(TAG, "streamBmpFromHttp: keep partial download of " + uri);
+                    } else {
+                        editor.abort();
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        mDiskLruCache.flush();
+
+        if (!committed && bitmap != null) {
+            // 下载中断, 解码结果可能不完整
+            mBitmapPool.put(bitmap);
+            return null;
+        }
+        if (committed && info != null) {
+            mImageInfos.put(key, info);
+        }
+        if (bitmap != null) {
+            retainBmp(bitmap);
+            addBmpToMemCache(key, bitmap, reqWidth, reqHeight);
+        }
+        return bitmap;
+    }
+
+
+    /**
+     * Queues a revalidation of the expired Disk-Cache entry {@code key} on the
+     * network pool, unless one is queued already. Nobody waits for it, the
+     * stale image is shown meanwhile.
+     */
+    private void revalidateInBackground(String uri, String key, ImageMetadata stale) {
+        synchronized (mInFlightTasks) {
+            if (!mRevalidatingKeys.add(key)) {
+                return;
+            }
+            LoadTask task = new LoadTask(key, uri, 0, 0, Priority.BACKGROUND, false);
+            task.mStaleMetadata = stale;
+            task.moveTo(STAGE_NETWORK);
+        }
+    }
+
+
+    /**
+     * 向服务器验证过期的条目: 304时只更新元数据, 图片改变时下载新图片替换条目,
+     * 并丢弃Memory-Cache中的旧图片
+     */
+    private void revalidate(String uri, String key, ImageMetadata stale) throws IOException {
+        DiskLruCache.Editor editor = mDiskLruCache.edit(key);
+        if (editor == null) {
+            // 正在被写入, 即已在重新下载
+            return;
+        }
+        Map<String, String> headers = new HashMap<String, String>();
+        if (stale.getETag() != null) {
+            headers.put("If-None-Match", stale.getETag());
+        }
+        if (stale.getLastModified() != null) {
+            headers.put("If-Modified-Since", stale.getLastModified());
+        }
+        boolean committed = false;
+        boolean changed = false;
+        NetworkFetcher.Response response = null;
+        try {
+            response = mFetcher.fetch(uri, headers);
+            ImageMetadata metadata;
+            if (response.getCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                ImageMetadata.Builder builder = stale.newBuilder();
+                EntryDownloader.setResponseMetadata(builder, response);
+                metadata = builder.build();
+                if (metadata.getExpireTime() == 0 && stale.getExpireTime() > 0) {
+                    // 304中没有缓存头部时沿用原来的有效期
+                    metadata = builder.setExpireTime(
+                            metadata.getFetchTime() + stale.getExpireTime() - stale.getFetchTime()).build();
+                }
+            } else if (response.getCode() == HttpURLConnection.HTTP_OK) {
+                ImageMetadata.Builder builder = new ImageMetadata.Builder();
+                EntryDownloader.setResponseMetadata(builder, response);
+                metadata = builder.setByteCount(
+                        EntryDownloader.writeBody(response, editor.newOutputStream(DISK_CACHE_INDEX), null)).build();
+                changed = true;
+            } else {
+                Log.w(TAG, "revalidate: HTTP " + response.getCode() + ": " + uri);
+                return;
+            }
+            // 304时只写元数据, 图片文件保持不变
+            editor.set(DISK_CACHE_METADATA_INDEX, metadata.encode());
+            editor.commit();
+            committed = true;
+        } finally {
+            if (response != null) {
+                response.close();
+            }
+            if (!committed) {
+                editor.abort();
+            }
+        }
+        mDiskLruCache.flush();
+        if (changed) {
+            Log.d(TAG, "revalidate: image changed " + uri);
+            invalidateMemCache(key);
+        } else {
+            Log.d(TAG, "revalidate: not modified " + uri);
+        }
+    }
+
+
+    /**
+     * 从硬盘缓存中加载图片, 返回的Bitmap已被调用者引用, 见{@link #retainBmp(Bitmap)}
+     *
+     * @param metadata the metadata already read from {@code snapshot}, or null.
+     */
+    private Bitmap loadBmpFromDisk(String key, DiskLruCache.Snapshot snapshot, ImageMetadata metadata,
+                                   int reqWidth, int reqHeight) throws IOException {
+        // 判断当前线程
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            Log.w(TAG, "loadBmpFromDisk: in UI-Thread isn't recommend!");
+        }
+
+        // 映射到内存中, 采样率计算和解码都从同一块内存读取
+        ByteBuffer data = snapshot.map(DISK_CACHE_INDEX);
+        // 尺寸依次从内存, 条目的元数据和文件头中获取
+        ImageInfo info = mImageInfos.get(key);
+        if (info == null) {
+            if (metadata == null) {
+                metadata = ImageMetadata.decode(snapshot.getString(DISK_CACHE_METADATA_INDEX));
+            }
+            info = metadata.getImageInfo();
+            if (info == null) {
+                info = Decoders.probe(mDecoder, data);
+                if (info == null) {
+                    return null;
+                }
+                writeMetadata(snapshot, metadata.newBuilder().setImageInfo(info).build());
+            }
+            mImageInfos.put(key, info);
+        }
+        Bitmap bitmap = Decoders.decodeSampled(mDecoder, data, info, reqWidth, reqHeight);
+        if (bitmap != null) {
+            // 先引用再放入缓存, 以免被立即淘汰到Bitmap池中
+            retainBmp(bitmap);
+            addBmpToMemCache(key, bitmap, reqWidth, reqHeight);
+        }
+        return bitmap;
+    }
+
+
+    /**
+     * 只更新条目的元数据, 图片本身不变. 条目正在被写入时放弃
+     */
+    private void writeMetadata(DiskLruCache.Snapshot snapshot, ImageMetadata metadata) throws IOException {
+        DiskLruCache.Editor editor = snapshot.edit();
+        if (editor == null) {
+            return;
+        }
+        boolean committed = false;
+        try {
+            editor.set(DISK_CACHE_METADATA_INDEX, metadata.encode());
+            editor.commit();
+            committed = true;
+        } finally {
+            if (!committed) {
+                editor.abort();
+            }
+        }
+    }
+
+
+    /**
+     * 存入Memory-Cache, 以解码后的尺寸和config区分同一张图片的不同Bitmap
+     */
+    private void addBmpToMemCache(String key, Bitmap bitmap, int reqWidth, int reqHeight) {
+        restoreMemCacheSize();
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        String variantKey = BitmapVariants.variantKey(key, width, height, String.valueOf(bitmap.getConfig()));
+        // indexed before it is cached, so an immediate eviction removes it from the index again
+        mBitmapVariants.add(key, variantKey, width, height,
+                BitmapVariants.isFullSize(width, height, reqWidth, reqHeight));
+        cacheBmp(variantKey, bitmap);
+    }
+
+    /**
+     * Puts {@code bitmap} into mMemCache, or into the active tier if it is
+     * used already, unless {@code cacheKey} is cached.
+     */
+    private void cacheBmp(String cacheKey, Bitmap bitmap) {
+        synchronized (mBitmapUsers) {
+            purgeActiveBitmaps();
+            if (mMemCache.peek(cacheKey) != null || getActiveBmp(cacheKey) != null) {
+                return;
+            }
+            mCachedBitmapKeys.put(bitmap, cacheKey);
+            if (mBitmapUsers.containsKey(bitmap)) {
+                // 刚解码的Bitmap已被调用者引用, 直接进入活动层
+                mMemCache.putPinned(cacheKey, bitmap);
+                mActiveBitmaps.put(cacheKey, new ActiveBitmapRef(cacheKey, bitmap, mActiveBitmapQueue));
+            } else {
+                mMemCache.put(cacheKey, bitmap);
+            }
+        }
+    }
+
+
+    /**
+     * Load the smallest bitmap from LruCache which is at least
+     * {@code reqWidth x reqHeight}. The caller holds a reference to the
+     * returned bitmap and must release it with {@link #releaseBmp(Bitmap)}.
+     */
+    private Bitmap getBmpFromMemCache(String key, int reqWidth, int reqHeight) {
+        String variantKey = mBitmapVariants.find(key, reqWidth, reqHeight);
+        if (variantKey == null) {
+            return null;
+        }
+        synchronized (mBitmapUsers) {
+            purgeActiveBitmaps();
+            Bitmap bitmap = mMemCache.get(variantKey);
+            if (bitmap == null) {
+                // 仍被ImageView显示的Bitmap被固定, 从活动层找回
+                bitmap = getActiveBmp(variantKey);
+                if (bitmap != null) {
+                    mActiveHitCount++;
+                }
+            }
+            if (bitmap != null) {
+                retainBmp(bitmap);
+            }
+            return bitmap;
+        }
+    }
+
+    /**
+     * Returns the number of Memory-Cache hits served by the active tier,
+     * i.e. by bitmaps which some ImageView was showing at the time.
+     */
+    public int getActiveHitCount() {
+        synchronized (mBitmapUsers) {
+            return mActiveHitCount;
+        }
+    }
+
+    /**
+     * Marks {@code bitmap} as used, so it isn't reused for another image.
+     * A cached bitmap gaining its first user is pinned: it moves from
+     * mMemCache to the active tier, its key stays with the eviction policy.
+     */
+    private void retainBmp(Bitmap bitmap) {
+        synchronized (mBitmapUsers) {
+            Integer users = mBitmapUsers.get(bitmap);
+            mBitmapUsers.put(bitmap, users == null ? 1 : users + 1);
+            if (users == null) {
+                String variantKey = mCachedBitmapKeys.get(bitmap);
+                if (variantKey != null && mMemCache.peek(variantKey) == bitmap) {
+                    mMemCache.pin(variantKey);
+                    mActiveBitmaps.put(variantKey, new ActiveBitmapRef(variantKey, bitmap, mActiveBitmapQueue));
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops a use of {@code bitmap}. A cached bitmap losing its last user
+     * moves from the active tier back into mMemCache, at the place its key
+     * kept with the eviction policy, where it can be evicted.
+     */
+    private void releaseBmp(Bitmap bitmap) {
+        synchronized (mBitmapUsers) {
+            Integer users = mBitmapUsers.get(bitmap);
+            if (users != null && users > 1) {
+                mBitmapUsers.put(bitmap, users - 1);
+                return;
+            }
+            mBitmapUsers.remove(bitmap);
+            String variantKey = mCachedBitmapKeys.get(bitmap);
+            if (variantKey != null && getActiveBmp(variantKey) == bitmap) {
+                mActiveBitmaps.remove(variantKey);
+                mMemCache.unpin(variantKey, bitmap);
+            }
+        }
+    }
+
+    /**
+     * A bitmap left mMemCache. One which is still used is pinned in the
+     * active tier, one which was evicted goes to the BitmapPool.
+     */
+    private void onMemCacheRemoved(String variantKey, Bitmap bitmap, boolean evicted) {
+        synchronized (mBitmapUsers) {
+            if (mBitmapUsers.containsKey(bitmap)) {
+                mActiveBitmaps.put(variantKey, new ActiveBitmapRef(variantKey, bitmap, mActiveBitmapQueue));
+                return;
+            }
+            mCachedBitmapKeys.remove(bitmap);
+            mBitmapVariants.remove(variantKey);
+            if (evicted) {
+                mBitmapPool.put(bitmap);
+            }
+        }
+    }
+
+    /**
+     * Returns the bitmap of the active tier for {@code variantKey}, or null.
+     * Must hold the lock of mBitmapUsers.
+     */
+    private Bitmap getActiveBmp(String variantKey) {
+        ActiveBitmapRef ref = mActiveBitmaps.get(variantKey);
+        return ref != null ? ref.get() : null;
+    }
+
+    /**
+     * Forgets active bitmaps which have been garbage collected, their views
+     * were collected without being rebound. Must hold the lock of mBitmapUsers.
+     */
+    private void purgeActiveBitmaps() {
+        ActiveBitmapRef ref;
+        while ((ref = (ActiveBitmapRef) mActiveBitmapQueue.poll()) != null) {
+            if (mActiveBitmaps.get(ref.mVariantKey) == ref) {
+                mActiveBitmaps.remove(ref.mVariantKey);
+                // 被固定的key不会被淘汰, 从淘汰策略中移除
+                mMemCache.remove(ref.mVariantKey);
+                mBitmapVariants.remove(ref.mVariantKey);
+            }
+        }
+    }
+
+    /**
+     * Returns the tile {@code tileKey} of a {@link TiledImage} from
+     * Memory-Cache, with a reference the caller releases with {@link #releaseTile}.
+     */
+    Bitmap getTileFromMemCache(String tileKey) {
+        synchronized (mBitmapUsers) {
+            purgeActiveBitmaps();
+            Bitmap bitmap = mMemCache.get(tileKey);
+            if (bitmap == null) {
+                bitmap = getActiveBmp(tileKey);
+            }
+            if (bitmap != null) {
+                retainBmp(bitmap);
+            }
+            return bitmap;
+        }
+    }
+
+    /**
+     * Returns true if the tile {@code tileKey} is in Memory-Cache, without counting as a use.
+     */
+    boolean isTileCached(String tileKey) {
+        synchronized (mBitmapUsers) {
+            return mMemCache.peek(tileKey) != null || getActiveBmp(tileKey) != null;
+        }
+    }
+
+    /**
+     * Caches a tile which the caller holds a reference to, see
+     * {@link #retainTile}. Tiles share Memory-Cache and its active tier with
+     * whole images, but aren't variants, bindBmp never finds them.
+     */
+    void addTileToMemCache(String tileKey, Bitmap tile) {
+        restoreMemCacheSize();
+        cacheBmp(tileKey, tile);
+    }
+
+    void retainTile(Bitmap tile) {
+        retainBmp(tile);
+    }
+
+    void releaseTile(Bitmap tile) {
+        releaseBmp(tile);
+    }
+
+    ImageResizer getResizer() {
+        return mResizer;
+    }
+
+    /**
+     * Drops every decoded bitmap of the image {@code key} and its dimensions,
+     * after the image changed on the server. Bitmaps which views still show
+     * stay there until they are rebound, but aren't cached again.
+     */
+    private void invalidateMemCache(String key) {
+        mImageInfos.remove(key);
+        synchronized (mBitmapUsers) {
+            for (String variantKey : mBitmapVariants.removeAll(key)) {
+                // 使用中的只移除被固定的key, 不会通知entryRemoved()
+                mMemCache.remove(variantKey);
+                ActiveBitmapRef ref = mActiveBitmaps.remove(variantKey);
+                Bitmap bitmap = ref != null ? ref.get() : null;
+                if (bitmap != null) {
+                    // releaseBmp()不再将其放回mMemCache
+                    mCachedBitmapKeys.remove(bitmap);
+                }
+            }
+        }
+    }
+
+    private static final class ActiveBitmapRef extends WeakReference<Bitmap> {
+        final String mVariantKey;
+
+        ActiveBitmapRef(String variantKey, Bitmap bitmap, ReferenceQueue<Bitmap> queue) {
+            super(bitmap, queue);
+            mVariantKey = variantKey;
+        }
+    }
+
+    /**
+     * Sets {@code bitmap} on {@code imageView}, the view keeps a reference to it
+     * until another bitmap is set by the ImageLoader. Must run in UI-Thread.
+     */
+    private void showBmp(ImageView imageView, Bitmap bitmap) {
+        Bitmap shown = mBoundBitmaps.put(imageView, bitmap);
+        if (shown != bitmap) {
+            retainBmp(bitmap);
+            if (shown != null) {
+                releaseBmp(shown);
+            }
+        }
+        imageView.setImageBitmap(bitmap);
+    }
+
+    private String hashKeyFromUri(String uri) {
+        return mKeyHasher.hashKey(uri);
+    }
+
+
+    /**
+     * Loading target Bitmap by using the {@link NetworkFetcher},
+     * this operation can't in MainThread.
+     *
+     * @param uri An Uri for this bitmap from web.
+     * @return Loaded bitmap.
+     */
+    public Bitmap downloadBmpFromNet(String uri) {
+        Bitmap bitmap = null;
+        NetworkFetcher.Response response = null;
+        try {
+            response = mFetcher.fetch(uri, null);
+            if (response.getCode() == HttpURLConnection.HTTP_OK) {
+                bitmap = BitmapFactory.decodeStream(new BufferedInputStream(response.getBody(), IO_BUFFER_SIZE));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (response != null) {
+                try {
+                    response.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
             }
         }
@@ -379,6 +1401,604 @@ public class ImageLoader {
     }
 
 
+    private static final int STAGE_DISK = 0;
+    private static final int STAGE_NETWORK = 1;
+    private static final int STAGE_DECODE = 2;
+
+    /**
+     * A load of one uri, shared by every ImageView which requested the uri
+     * while the load was in flight. The task runs once on every pipeline stage
+     * it passes through, and each stage hands it to the next.
+     */
+    private class LoadTask implements Runnable {
+        private final String mKey;
+        private final String mUri;
+        private final int mReqWidth;
+        private final int mReqHeight;
+        // Written while holding mInFlightTasks and only while the task isn't queued.
+        private Priority mPriority;
+        private long mSequence;
+        private long mEnqueueTime;
+        private int mStage;
+        // False for loads which only download into Disk-Cache, see prefetchToDisk.
+        private final boolean mDecode;
+        // Guarded by mInFlightTasks.
+        private final List<ImageView> mTargets = new ArrayList<ImageView>(1);
+        // Prefetches waiting for this load besides mTargets. Guarded by mInFlightTasks.
+        private int mPrefetchCount;
+        // Run when this load ends, see loadToDisk. Guarded by mInFlightTasks.
+        private final List<Runnable> mDiskListeners = new ArrayList<Runnable>(0);
+        /**
+         * Loads of this uri at other sizes, which start once this load has put
+         * the image into Disk-Cache. Guarded by mInFlightTasks.
+         */
+        private final List<LoadTask> mFollowers = new ArrayList<LoadTask>(0);
+        // The load this task follows, null once it is queued. Guarded by mInFlightTasks.
+        private LoadTask mPrimary;
+        // Set once the last waiting ImageView was bound to another uri, cleared
+        // again by a request which revives the running load. Written while holding mInFlightTasks.
+        private volatile boolean mCancelled;
+        // The Disk-Cache entry found by the disk or network stage, closed by the decode stage.
+        private DiskLruCache.Snapshot mSnapshot;
+        // The metadata of mSnapshot if the disk stage read it.
+        private ImageMetadata mMetadata;
+        // Set for revalidations of an expired Disk-Cache entry, see revalidateInBackground.
+        private ImageMetadata mStaleMetadata;
+
+        LoadTask(String key, String uri, int reqWidth, int reqHeight, Priority priority, boolean decode) {
+            mKey = key;
+            mUri = uri;
+            mReqWidth = reqWidth;
+            mReqHeight = reqHeight;
+            mPriority = priority;
+            mDecode = decode;
+            mSequence = sTaskSequence.getAndIncrement();
+        }
+
+        // 等待时间过长的预取/后台任务已无意义, 有ImageView或loadToDisk等待的任务不过期.
+        // Must hold mInFlightTasks.
+        boolean isExpired() {
+            if (!mTargets.isEmpty() || !mDiskListeners.isEmpty()) {
+                return false;
+            }
+            return mPriority.mMaxQueuedMillis > 0
+                    && SystemClock.uptimeMillis() - mEnqueueTime > mPriority.mMaxQueuedMillis;
+        }
+
+        /**
+         * Returns this load or its follower which loads {@code reqWidth x reqHeight}
+         * and decodes or not, or null.
+         */
+        LoadTask findLoad(int reqWidth, int reqHeight, boolean decode) {
+            if (loads(reqWidth, reqHeight, decode)) {
+                return this;
+            }
+            for (LoadTask follower : mFollowers) {
+                if (follower.loads(reqWidth, reqHeight, decode)) {
+                    return follower;
+                }
+            }
+            return null;
+        }
+
+        private boolean loads(int reqWidth, int reqHeight, boolean decode) {
+            return mReqWidth == reqWidth && mReqHeight == reqHeight && mDecode == decode;
+        }
+
+        void addTarget(ImageView imageView) {
+            if (!mTargets.contains(imageView)) {
+                mTargets.add(imageView);
+            }
+        }
+
+        ThreadPoolExecutor stageExecutor() {
+            switch (mStage) {
+                case STAGE_NETWORK:
+                    return mNetworkExecutor;
+                case STAGE_DECODE:
+                    return mDecodeExecutor;
+                default:
+                    return mDiskExecutor;
+            }
+        }
+
+        /**
+         * Queues this task on the pool of {@code stage}. The request order is
+         * kept, so a load doesn't lose its place between the stages, and the
+         * priority is the highest of the requests which joined it, see
+         * {@link #requeue(LoadTask, Priority)}.
+         */
+        void moveTo(int stage) {
+            synchronized (mInFlightTasks) {
+                mStage = stage;
+                mEnqueueTime = SystemClock.uptimeMillis();
+                stageExecutor().execute(this);
+            }
+        }
+
+        void closeSnapshot() {
+            DiskLruCache.closeQuietly(mSnapshot);
+            mSnapshot = null;
+        }
+
+        @Override
+        public void run() {
+            if (stopIfCancelled()) {
+                return;
+            }
+            try {
+                switch (mStage) {
+                    case STAGE_DISK:
+                        runDiskStage(this);
+                        break;
+                    case STAGE_NETWORK:
+                        runNetworkStage(this);
+                        break;
+                    case STAGE_DECODE:
+                        runDecodeStage(this);
+                        break;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                finish(null);
+            } catch (RuntimeException e) {
+                finish(null);
+                throw e;
+            }
+        }
+
+        /**
+         * Ends this load at a stage boundary if it was cancelled or has waited
+         * too long. Decided while holding mInFlightTasks, so a request which
+         * revives the load either comes first or finds it detached already.
+         */
+        private boolean stopIfCancelled() {
+            synchronized (mInFlightTasks) {
+                if (!mCancelled && isExpired()) {
+                    Log.d(TAG, "run: drop expired load of " + mUri);
+                    mCancelled = true;
+                }
+                if (!mCancelled) {
+                    return false;
+                }
+                finish(null);
+                return true;
+            }
+        }
+
+        /**
+         * Ends this load and delivers {@code target} to every waiting ImageView.
+         * Takes over the caller's reference to {@code target}.
+         */
+        void finish(Bitmap target) {
+            closeSnapshot();
+            // detach from the table before delivering, later requests start a new load
+            List<ImageView> imageViews;
+            List<Runnable> diskListeners;
+            synchronized (mInFlightTasks) {
+                if (mStaleMetadata != null) {
+                    mRevalidatingKeys.remove(mKey);
+                }
+                if (mInFlightTasks.get(mKey) == this) {
+                    mInFlightTasks.remove(mKey);
+                    if (!mFollowers.isEmpty()) {
+                        // the next size takes over, the rest keep following it
+                        LoadTask next = mFollowers.remove(0);
+                        next.mPrimary = null;
+                        for (LoadTask follower : mFollowers) {
+                            follower.mPrimary = next;
+                            next.mFollowers.add(follower);
+                        }
+                        mFollowers.clear();
+                        mInFlightTasks.put(mKey, next);
+                        next.moveTo(STAGE_DISK);
+                    }
+                }
+                imageViews = new ArrayList<ImageView>(mTargets);
+                diskListeners = new ArrayList<Runnable>(mDiskListeners);
+                mDiskListeners.clear();
+            }
+            if (target != null) {
+                deliver(target, imageViews);
+            }
+            // the download was committed to Disk-Cache before the load ended
+            for (Runnable listener : diskListeners) {
+                listener.run();
+            }
+        }
+
+        /**
+         * Returns true if an ImageView waits for this load, prefetches don't
+         * need previews.
+         */
+        boolean hasTargets() {
+            synchronized (mInFlightTasks) {
+                return !mCancelled && !mTargets.isEmpty();
+            }
+        }
+
+        /**
+         * Shows {@code preview} in every waiting ImageView until {@link #finish}
+         * delivers the image, messages are handled in order. Takes over the
+         * caller's reference to {@code preview}.
+         */
+        void post(Bitmap preview) {
+            List<ImageView> imageViews;
+            synchronized (mInFlightTasks) {
+                imageViews = new ArrayList<ImageView>(mTargets);
+            }
+            deliver(preview, imageViews);
+        }
+
+        private void deliver(Bitmap bitmap, List<ImageView> imageViews) {
+            if (!mCancelled) {
+                for (ImageView imageView : imageViews) {
+                    // each message holds a reference until it is handled
+                    retainBmp(bitmap);
+                    LoaderResult result = new LoaderResult(imageView, mUri, bitmap);
+                    Message msg = mMainHandler.obtainMessage(MSG_POST_RESULT, result);
+                    msg.sendToTarget();
+                }
+            }
+            releaseBmp(bitmap);
+        }
+    }
+
+
+    /**
+     * Decodes coarse previews of a download while its bytes arrive and posts
+     * them to the ImageViews waiting for the load. BitmapFactory decodes as
+     * much of a cut-off image as it has: every scan so far of a progressive
+     * JPEG or interlaced PNG covers the whole image, a baseline image shows
+     * its top part. A preview is decoded each time the received bytes have
+     * doubled, a few times at most, and not close to the end, where the
+     * image itself is about to be shown. The buffers of all downloads share
+     * {@link #mPreviewBudget}, a download which doesn't fit shows no previews.
+     * Runs on the network thread.
+     */
+    private class ProgressivePreview implements EntryDownloader.BodyListener {
+        private final LoadTask mTask;
+        private byte[] mData;
+        // mData从mPreviewBudget中占用的字节数
+        private int mReserved;
+        private int mCount;
+        private long mContentLength = -1;
+        private int mNextPreviewSize = MIN_PREVIEW_BYTES;
+        private long mLastPreviewTime;
+        private int mPreviewCount;
+        private ImageInfo mInfo;
+        // 不再解码预览, 缓冲已释放
+        private boolean mStopped;
+
+        ProgressivePreview(LoadTask task) {
+            mTask = task;
+        }
+
+        /**
+         * Starts a download of {@code contentLength} bytes, -1 if unknown.
+         */
+        @Override
+        public void begin(long contentLength) {
+            mContentLength = contentLength;
+            if (contentLength > MAX_PREVIEW_BUFFER_SIZE
+                    || (contentLength >= 0 && contentLength < MIN_PREVIEW_BYTES)) {
+                // 太大不缓冲, 太小很快就能显示
+                stop();
+                return;
+            }
+            int size = contentLength > 0 ? (int) contentLength : MIN_PREVIEW_BYTES;
+            if (!reserve(size)) {
+                // 其他下载的预览已占满内存
+                stop();
+                return;
+            }
+            mData = new byte[size];
+        }
+
+        @Override
+        public void onBytes(byte[] buf, int count) {
+            if (mStopped) {
+                return;
+            }
+            if (mCount + count > MAX_PREVIEW_BUFFER_SIZE) {
+                stop();
+                return;
+            }
+            if (mCount + count > mData.length) {
+                int size = Math.min(MAX_PREVIEW_BUFFER_SIZE, Math.max(mData.length * 2, mCount + count));
+                if (!reserve(size)) {
+                    stop();
+                    return;
+                }
+                byte[] data = new byte[size];
+                System.arraycopy(mData, 0, data, 0, mCount);
+                mData = data;
+            }
+            System.arraycopy(buf, 0, mData, mCount, count);
+            mCount += count;
+
+            if (mCount < mNextPreviewSize) {
+                return;
+            }
+            if (mContentLength > 0 && mCount >= mContentLength * 9 / 10) {
+                // 快下载完了, 等待完整的图片
+                stop();
+                return;
+            }
+            long now = SystemClock.uptimeMillis();
+            if (now - mLastPreviewTime < MIN_PREVIEW_INTERVAL) {
+                return;
+            }
+            if (!mTask.hasTargets()) {
+                // 只是预取, 或ImageView已绑定到其他uri
+                stop();
+                return;
+            }
+            if (!decodePreview()) {
+                stop();
+                return;
+            }
+            mLastPreviewTime = now;
+            mNextPreviewSize = mCount * 2;
+            if (++mPreviewCount >= MAX_PREVIEW_COUNT) {
+                stop();
+            }
+        }
+
+        /**
+         * @return false if the received bytes can't be decoded, e.g. an
+         * unknown format, later previews would fail too.
+         */
+        private boolean decodePreview() {
+            ByteBuffer data = ByteBuffer.wrap(mData, 0, mCount);
+            Bitmap bitmap;
+            try {
+                if (mInfo == null) {
+                    mInfo = Decoders.probe(mDecoder, data);
+                    if (mInfo == null) {
+                        return false;
+                    }
+                }
+                int sampleSize = PREVIEW_SAMPLE_FACTOR * Decoders.calculateInSampleSize(
+                        mInfo.getWidth(), mInfo.getHeight(), mTask.mReqWidth, mTask.mReqHeight);
+                bitmap = mDecoder.decode(data, mInfo, sampleSize);
+            } catch (IOException e) {
+                Log.w(TAG, "decodePreview: " + mTask.mUri, e);
+                return false;
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "decodePreview: " + mTask.mUri, e);
+                return false;
+            }
+            if (bitmap == null) {
+                return false;
+            }
+            Log.d(TAG, "decodePreview: " + mCount + " bytes of " + mTask.mUri);
+            // 预览不放入缓存, 完整的图片显示后由GC回收
+            retainBmp(bitmap);
+            mTask.post(bitmap);
+            return true;
+        }
+
+        /**
+         * The body ended, completely or not: the buffer goes back to the budget.
+         */
+        @Override
+        public void end() {
+            stop();
+        }
+
+        /**
+         * Takes what a buffer of {@code size} bytes needs beyond the current
+         * one from {@link #mPreviewBudget}.
+         *
+         * @return false if the budget can't cover it.
+         */
+        private boolean reserve(int size) {
+            int more = size - mReserved;
+            while (true) {
+                int budget = mPreviewBudget.get();
+                if (budget < more) {
+                    return false;
+                }
+                if (mPreviewBudget.compareAndSet(budget, budget - more)) {
+                    mReserved = size;
+                    return true;
+                }
+            }
+        }
+
+        private void stop() {
+            mStopped = true;
+            mData = null;
+            if (mReserved > 0) {
+                mPreviewBudget.addAndGet(mReserved);
+                mReserved = 0;
+            }
+        }
+    }
+
+
+    /**
+     * Construction arguments of the ImageLoader, see {@link #getInstance(Context, Config)}.
+     */
+    public static final class Config {
+        private int mNetworkPoolSize = DEFAULT_NETWORK_POOL_SIZE;
+        private int mDiskPoolSize = DEFAULT_DISK_POOL_SIZE;
+        private int mDecodePoolSize = DEFAULT_DECODE_POOL_SIZE;
+        private final DiskLruCache.Options mDiskCacheOptions = new DiskLruCache.Options();
+        private boolean mStreamingDownload = true;
+        private boolean mProgressiveRendering;
+        private KeyHasher.Algorithm mKeyAlgorithm = KeyHasher.Algorithm.MD5;
+        private Decoder<Bitmap> mDecoder;
+        private EvictionPolicy.Type mMemCachePolicy = EvictionPolicy.Type.LRU;
+        private NetworkFetcher mFetcher;
+        private int mConnectTimeout = HttpUrlFetcher.DEFAULT_CONNECT_TIMEOUT;
+        private int mReadTimeout = HttpUrlFetcher.DEFAULT_READ_TIMEOUT;
+        private int mMaxRequestsPerHost = HttpUrlFetcher.DEFAULT_MAX_REQUESTS_PER_HOST;
+
+        /**
+         * Threads which download images, mostly blocked on the network.
+         */
+        public Config setNetworkPoolSize(int poolSize) {
+            mNetworkPoolSize = checkPoolSize(poolSize);
+            return this;
+        }
+
+        /**
+         * Threads which look images up in the Disk-Cache.
+         */
+        public Config setDiskPoolSize(int poolSize) {
+            mDiskPoolSize = checkPoolSize(poolSize);
+            return this;
+        }
+
+        /**
+         * Threads which decode images, CPU bound.
+         */
+        public Config setDecodePoolSize(int poolSize) {
+            mDecodePoolSize = checkPoolSize(poolSize);
+            return this;
+        }
+
+        /**
+         * Splits the Disk-Cache into {@code shardCount} independently locked
+         * parts, so concurrent disk hits don't serialize. Changing the count
+         * clears the Disk-Cache once.
+         */
+        public Config setDiskCacheShardCount(int shardCount) {
+            mDiskCacheOptions.setShardCount(shardCount);
+            return this;
+        }
+
+        /**
+         * Sets the journal format of the Disk-Cache. An existing journal is
+         * migrated to it when the ImageLoader is created.
+         */
+        public Config setDiskCacheJournalFormat(DiskLruCache.JournalFormat journalFormat) {
+            mDiskCacheOptions.setJournalFormat(journalFormat);
+            return this;
+        }
+
+        /**
+         * Sets which images the Disk-Cache evicts first, LRU by default.
+         * {@link DiskLruCache.Eviction#GDSF} keeps small, often shown images
+         * such as avatars instead of large ones which were seen once.
+         */
+        public Config setDiskCacheEviction(DiskLruCache.Eviction eviction) {
+            mDiskCacheOptions.setEviction(eviction);
+            return this;
+        }
+
+        /**
+         * Decodes downloads while they are written to the Disk-Cache (the
+         * default), or only after the whole download has been committed.
+         * Streaming decodes on the network threads.
+         */
+        public Config setStreamingDownload(boolean streamingDownload) {
+            mStreamingDownload = streamingDownload;
+            return this;
+        }
+
+        /**
+         * Shows coarse previews of large downloads in the ImageViews while
+         * the bytes arrive, replaced by the image once it is downloaded. Off
+         * by default; replaces the streaming decode, the image is decoded
+         * from the Disk-Cache after the download.
+         */
+        public Config setProgressiveRendering(boolean progressiveRendering) {
+            mProgressiveRendering = progressiveRendering;
+            return this;
+        }
+
+        /**
+         * Sets the hash which derives cache keys from uris, MD5 by default.
+         * Changing it misses everything in the Disk-Cache until it is evicted.
+         */
+        public Config setKeyAlgorithm(KeyHasher.Algorithm keyAlgorithm) {
+            if (keyAlgorithm == null) {
+                throw new IllegalArgumentException("keyAlgorithm == null");
+            }
+            mKeyAlgorithm = keyAlgorithm;
+            return this;
+        }
+
+        /**
+         * Sets the decoder of images read from the Disk-Cache, BitmapFactory
+         * by default. Downloads are only decoded while streaming with the default.
+         */
+        public Config setDecoder(Decoder<Bitmap> decoder) {
+            mDecoder = decoder;
+            return this;
+        }
+
+        /**
+         * Sets how Memory-Cache picks the bitmaps it evicts, LRU by default.
+         * {@link EvictionPolicy.Type#TINY_LFU} keeps often shown images
+         * while long lists are scrolled through.
+         */
+        public Config setMemoryCachePolicy(EvictionPolicy.Type policy) {
+            if (policy == null) {
+                throw new IllegalArgumentException("policy == null");
+            }
+            mMemCachePolicy = policy;
+            return this;
+        }
+
+        /**
+         * Sets what downloads the images, a {@link HttpUrlFetcher} with the
+         * timeouts and per-host limit of this config by default.
+         */
+        public Config setNetworkFetcher(NetworkFetcher fetcher) {
+            mFetcher = fetcher;
+            return this;
+        }
+
+        /**
+         * Milliseconds to wait for a connection to a host, 10s by default.
+         */
+        public Config setConnectTimeout(int timeoutMillis) {
+            mConnectTimeout = checkTimeout(timeoutMillis);
+            return this;
+        }
+
+        /**
+         * Milliseconds to wait for data from a host before a download fails,
+         * 30s by default, so a stalled host doesn't hold a network thread forever.
+         */
+        public Config setReadTimeout(int timeoutMillis) {
+            mReadTimeout = checkTimeout(timeoutMillis);
+            return this;
+        }
+
+        /**
+         * Downloads which run against one host at the same time, 5 by default.
+         * The others wait on their network threads, so keep it below the
+         * network pool size if the images come from several hosts.
+         */
+        public Config setMaxRequestsPerHost(int maxRequests) {
+            if (maxRequests <= 0) {
+                throw new IllegalArgumentException("maxRequests <= 0");
+            }
+            mMaxRequestsPerHost = maxRequests;
+            return this;
+        }
+
+        private static int checkTimeout(int timeoutMillis) {
+            if (timeoutMillis < 0) {
+                throw new IllegalArgumentException("timeout < 0");
+            }
+            return timeoutMillis;
+        }
+
+        private static int checkPoolSize(int poolSize) {
+            if (poolSize <= 0) {
+                throw new IllegalArgumentException("poolSize <= 0");
+            }
+            return poolSize;
+        }
+    }
+
+
     /**
      * the result of bitmap and binded imageView.
      */
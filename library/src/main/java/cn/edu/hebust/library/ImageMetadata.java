@@ -0,0 +1,324 @@
+package cn.edu.hebust.library;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * What is known about an image in the Disk-Cache without decoding it, stored
+ * in the metadata value of its entry. Fields which aren't known are 0, -1 or
+ * null, entries migrated from older versions start out with nothing known.
+ * <p>
+ * Stored as "name=value" lines, unknown names are skipped when reading, so
+ * fields can be added without migrating the Disk-Cache again.
+ */
+public final class ImageMetadata {
+
+    private static final String WIDTH = "width";
+    private static final String HEIGHT = "height";
+    private static final String MIME_TYPE = "mime";
+    private static final String ORIENTATION = "orientation";
+    private static final String BYTE_COUNT = "bytes";
+    private static final String ETAG = "etag";
+    private static final String LAST_MODIFIED = "last-modified";
+    private static final String FETCH_TIME = "fetched";
+    private static final String EXPIRE_TIME = "expires";
+
+    private final int mWidth;
+    private final int mHeight;
+    private final String mMimeType;
+    private final int mOrientation;
+    private final long mByteCount;
+    private final String mETag;
+    private final String mLastModified;
+    private final long mFetchTime;
+    private final long mExpireTime;
+
+    private ImageMetadata(Builder builder) {
+        mWidth = builder.mWidth;
+        mHeight = builder.mHeight;
+        mMimeType = builder.mMimeType;
+        mOrientation = builder.mOrientation;
+        mByteCount = builder.mByteCount;
+        mETag = builder.mETag;
+        mLastModified = builder.mLastModified;
+        mFetchTime = builder.mFetchTime;
+        mExpireTime = builder.mExpireTime;
+    }
+
+    /**
+     * Returns the dimensions of the image, or null if they aren't known.
+     */
+    public ImageInfo getImageInfo() {
+        if (mWidth <= 0 || mHeight <= 0) {
+            return null;
+        }
+        return new ImageInfo(mWidth, mHeight, mMimeType, mOrientation);
+    }
+
+    /**
+     * Returns the size of the encoded image in bytes, -1 if unknown.
+     */
+    public long getByteCount() {
+        return mByteCount;
+    }
+
+    /**
+     * Returns the ETag response header of the download, null if there was none.
+     */
+    public String getETag() {
+        return mETag;
+    }
+
+    /**
+     * Returns the Last-Modified response header of the download, null if there was none.
+     */
+    public String getLastModified() {
+        return mLastModified;
+    }
+
+    /**
+     * Returns when the image was downloaded, in {@link System#currentTimeMillis()}, 0 if unknown.
+     */
+    public long getFetchTime() {
+        return mFetchTime;
+    }
+
+    /**
+     * Returns when the image has to be revalidated with the server, in
+     * {@link System#currentTimeMillis()}, 0 if the response didn't say.
+     */
+    public long getExpireTime() {
+        return mExpireTime;
+    }
+
+    /**
+     * Returns true if the image has expired at {@code now}. Images without
+     * an expiration time never do, they are kept until they are evicted.
+     */
+    public boolean isStale(long now) {
+        return mExpireTime > 0 && now >= mExpireTime;
+    }
+
+    /**
+     * Computes when a response fetched at {@code fetchTime} expires from its
+     * Cache-Control, Expires and Date headers, any of which may be null.
+     * max-age wins over Expires, no-cache and no-store expire right away.
+     *
+     * @return 0 if the headers don't limit the freshness.
+     */
+    public static long parseExpireTime(String cacheControl, String expires, String date, long fetchTime) {
+        if (cacheControl != null) {
+            long maxAge = -1;
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim().toLowerCase(Locale.US);
+                if (directive.equals("no-cache") || directive.equals("no-store")) {
+                    return fetchTime;
+                }
+                if (directive.startsWith("max-age=")) {
+                    try {
+                        maxAge = Math.max(0, Long.parseLong(directive.substring("max-age=".length()).trim()));
+                    } catch (NumberFormatException e) {
+                        // 按已过期处理
+                        maxAge = 0;
+                    }
+                }
+            }
+            if (maxAge >= 0) {
+                return fetchTime + maxAge * 1000;
+            }
+        }
+        if (expires != null) {
+            long expiresTime = parseHttpDate(expires);
+            if (expiresTime <= 0) {
+                // 无效的Expires, 如"0", 表示已过期
+                return fetchTime;
+            }
+            // 以服务器的时钟计算有效期
+            long dateTime = date != null ? parseHttpDate(date) : 0;
+            long freshness = expiresTime - (dateTime > 0 ? dateTime : fetchTime);
+            return fetchTime + Math.max(0, freshness);
+        }
+        return 0;
+    }
+
+    private static long parseHttpDate(String value) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            Date date = format.parse(value.trim());
+            return date.getTime();
+        } catch (ParseException e) {
+            return 0;
+        }
+    }
+
+    public Builder newBuilder() {
+        return new Builder(this);
+    }
+
+    /**
+     * Returns the stored form, see {@link #decode(String)}.
+     */
+    public String encode() {
+        StringBuilder sb = new StringBuilder();
+        if (mWidth > 0 && mHeight > 0) {
+            append(sb, WIDTH, String.valueOf(mWidth));
+            append(sb, HEIGHT, String.valueOf(mHeight));
+            append(sb, ORIENTATION, String.valueOf(mOrientation));
+        }
+        append(sb, MIME_TYPE, mMimeType);
+        if (mByteCount >= 0) {
+            append(sb, BYTE_COUNT, String.valueOf(mByteCount));
+        }
+        append(sb, ETAG, mETag);
+        append(sb, LAST_MODIFIED, mLastModified);
+        if (mFetchTime > 0) {
+            append(sb, FETCH_TIME, String.valueOf(mFetchTime));
+        }
+        if (mExpireTime > 0) {
+            append(sb, EXPIRE_TIME, String.valueOf(mExpireTime));
+        }
+        return sb.toString();
+    }
+
+    private static void append(StringBuilder sb, String name, String value) {
+        // header values can't contain line breaks, anything else would break the format
+        if (value == null || value.indexOf('\n') >= 0) {
+            return;
+        }
+        sb.append(name).append('=').append(value).append('\n');
+    }
+
+    /**
+     * Parses what {@link #encode()} returned. Malformed values are treated as unknown.
+     */
+    public static ImageMetadata decode(String encoded) {
+        Builder builder = new Builder();
+        if (encoded == null) {
+            return builder.build();
+        }
+        int start = 0;
+        while (start < encoded.length()) {
+            int end = encoded.indexOf('\n', start);
+            if (end == -1) {
+                end = encoded.length();
+            }
+            int separator = encoded.indexOf('=', start);
+            if (separator != -1 && separator < end) {
+                builder.set(encoded.substring(start, separator), encoded.substring(separator + 1, end));
+            }
+            start = end + 1;
+        }
+        return builder.build();
+    }
+
+    @Override
+    public String toString() {
+        return "ImageMetadata[" + encode().replace('\n', ',') + "]";
+    }
+
+    public static final class Builder {
+        private int mWidth;
+        private int mHeight;
+        private String mMimeType;
+        private int mOrientation = ImageInfo.ORIENTATION_NORMAL;
+        private long mByteCount = -1;
+        private String mETag;
+        private String mLastModified;
+        private long mFetchTime;
+        private long mExpireTime;
+
+        public Builder() {
+        }
+
+        private Builder(ImageMetadata metadata) {
+            mWidth = metadata.mWidth;
+            mHeight = metadata.mHeight;
+            mMimeType = metadata.mMimeType;
+            mOrientation = metadata.mOrientation;
+            mByteCount = metadata.mByteCount;
+            mETag = metadata.mETag;
+            mLastModified = metadata.mLastModified;
+            mFetchTime = metadata.mFetchTime;
+            mExpireTime = metadata.mExpireTime;
+        }
+
+        /**
+         * Sets dimensions, MIME type and orientation, a null info leaves them unchanged.
+         */
+        public Builder setImageInfo(ImageInfo info) {
+            if (info != null) {
+                mWidth = info.getWidth();
+                mHeight = info.getHeight();
+                mMimeType = info.getMimeType();
+                mOrientation = info.getOrientation();
+            }
+            return this;
+        }
+
+        public Builder setByteCount(long byteCount) {
+            mByteCount = byteCount;
+            return this;
+        }
+
+        public Builder setETag(String eTag) {
+            mETag = eTag;
+            return this;
+        }
+
+        public Builder setLastModified(String lastModified) {
+            mLastModified = lastModified;
+            return this;
+        }
+
+        public Builder setFetchTime(long fetchTime) {
+            mFetchTime = fetchTime;
+            return this;
+        }
+
+        /**
+         * Sets when the image expires, 0 if never, see {@link #parseExpireTime}.
+         */
+        public Builder setExpireTime(long expireTime) {
+            mExpireTime = expireTime;
+            return this;
+        }
+
+        public ImageMetadata build() {
+            return new ImageMetadata(this);
+        }
+
+        private void set(String name, String value) {
+            try {
+                if (WIDTH.equals(name)) {
+                    mWidth = Integer.parseInt(value);
+                } else if (HEIGHT.equals(name)) {
+                    mHeight = Integer.parseInt(value);
+                } else if (MIME_TYPE.equals(name)) {
+                    mMimeType = value;
+                } else if (ORIENTATION.equals(name)) {
+                    int orientation = Integer.parseInt(value);
+                    if (orientation >= ImageInfo.ORIENTATION_NORMAL
+                            && orientation <= ImageInfo.ORIENTATION_ROTATE_270) {
+                        mOrientation = orientation;
+                    }
+                } else if (BYTE_COUNT.equals(name)) {
+                    mByteCount = Long.parseLong(value);
+                } else if (ETAG.equals(name)) {
+                    mETag = value;
+                } else if (LAST_MODIFIED.equals(name)) {
+                    mLastModified = value;
+                } else if (FETCH_TIME.equals(name)) {
+                    mFetchTime = Long.parseLong(value);
+                } else if (EXPIRE_TIME.equals(name)) {
+                    mExpireTime = Long.parseLong(value);
+                }
+            } catch (NumberFormatException e) {
+                // unknown
+            }
+        }
+    }
+}
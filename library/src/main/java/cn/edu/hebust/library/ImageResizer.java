@@ -3,20 +3,46 @@ package cn.edu.hebust.library;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.os.Build;
 import android.util.Log;
 
 import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * Created by shixi_tianrui1 on 16-11-6.
  * 图片尺寸的调整
  * 根据ImageView的大小来压缩Bitmap,避免OOM问题
+ * 也是{@link Decoder}基于BitmapFactory的实现
  */
 
-public class ImageResizer {
+public class ImageResizer implements Decoder<Bitmap> {
 
     private static final String TAG = "ImageResizer";
 
+    // 读取图片尺寸时最多缓冲的字节数, 足以越过JPEG中的EXIF缩略图
+    public static final int STREAM_MARK_LIMIT = 1024 * 1024;       // 1MB
+
+    // 可为空, 为空时每次解码都分配新的Bitmap
+    private final BitmapPool mBitmapPool;
+
+    public ImageResizer() {
+        this(null);
+    }
+
+    /**
+     * @param bitmapPool decodes reuse compatible bitmaps from this pool, may be null.
+     */
+    public ImageResizer(BitmapPool bitmapPool) {
+        mBitmapPool = bitmapPool;
+    }
+
     /**
      * 从资源文件中获取图片,并根据ImageView对Bitmap尺寸进行调整
      */
@@ -31,7 +57,13 @@ public class ImageResizer {
         options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
         // 加载Bitmap
         options.inJustDecodeBounds = false;
-        return BitmapFactory.decodeResource(resources, resId, options);
+        addInBitmapOptions(options);
+        try {
+            return BitmapFactory.decodeResource(resources, resId, options);
+        } catch (IllegalArgumentException e) {
+            retryWithoutInBitmap(options, e);
+            return BitmapFactory.decodeResource(resources, resId, options);
+        }
     }
 
 
@@ -41,22 +73,7 @@ public class ImageResizer {
      * @return inSampleSize of each bitmap should be the power of 2.
      */
     private int calculateInSampleSize(BitmapFactory.Options options, int reqWidth, int reqHeight) {
-        if (reqHeight == 0 || reqWidth == 0) {
-            return 1;
-        }
-        // raw width and height of this bitmap.
-        int width = options.outWidth;
-        int height = options.outHeight;
-        int sampleSize = 1;
-
-        if (width > reqHeight || height > reqHeight) {
-            int halfWidth = width / 2;
-            int halfHeight = height / 2;
-
-            while ((halfHeight / sampleSize) >= reqHeight && (halfWidth / sampleSize) >= reqWidth) {
-                sampleSize *= 2;
-            }
-        }
+        int sampleSize = Decoders.calculateInSampleSize(options.outWidth, options.outHeight, reqWidth, reqHeight);
         // 选用最小的压缩比,可以保证图片会大于ImageView的尺寸,不会失真
         Log.d(TAG, "calculateInSampleSize: inSampleSize=" + sampleSize);
         return sampleSize;
@@ -68,10 +85,236 @@ public class ImageResizer {
      */
     public Bitmap decodeSampledBmpFromFD(FileDescriptor fd, int reqWidth, int reqHeight) {
         final BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        BitmapFactory.decodeFileDescriptor(fd, null, options);
+        ImageInfo info = readHeader(fd);
+        if (info != null) {
+            options.outWidth = info.getWidth();
+            options.outHeight = info.getHeight();
+            options.outMimeType = info.getMimeType();
+        } else {
+            // 不认识的格式, 由BitmapFactory读取尺寸
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFileDescriptor(fd, null, options);
+        }
         options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
         options.inJustDecodeBounds = false;
-        return BitmapFactory.decodeFileDescriptor(fd, null, options);
+        addInBitmapOptions(options);
+        try {
+            return BitmapFactory.decodeFileDescriptor(fd, null, options);
+        } catch (IllegalArgumentException e) {
+            retryWithoutInBitmap(options, e);
+            return BitmapFactory.decodeFileDescriptor(fd, null, options);
+        }
+    }
+
+
+    /**
+     * 只读取文件开头的{@link ImageHeaderParser#MAX_HEADER_SIZE}字节解析图片尺寸,
+     * 使用指定位置的读取, 不改变fd当前的读取位置
+     *
+     * @return null if the header isn't recognized within the first bytes.
+     */
+    private static ImageInfo readHeader(FileDescriptor fd) {
+        // 不关闭: 由fd创建的流在Android上不拥有fd, 关闭会关掉调用者的fd
+        FileChannel channel = new FileInputStream(fd).getChannel();
+        try {
+            long start = channel.position();
+            ByteBuffer header = ByteBuffer.allocate(ImageHeaderParser.MAX_HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header, start + header.position()) > 0) {
+                // read until the buffer is full or the file ends
+            }
+            header.flip();
+            return ImageHeaderParser.parse(header);
+        } catch (IOException e) {
+            Log.w(TAG, "readHeader: ", e);
+            return null;
+        }
+    }
+
+
+    /**
+     * 根据ByteBuffer(如内存映射的文件)获取调整采样率的图片,
+     * 两次解码都直接读取这块内存, 不需要再次打开文件
+     */
+    public Bitmap decodeSampledBmpFromBuffer(ByteBuffer buffer, int reqWidth, int reqHeight) throws IOException {
+        // 能从文件头解析尺寸时只解码一次
+        return Decoders.decodeSampled(this, buffer, reqWidth, reqHeight);
+    }
+
+
+    @Override
+    public ImageInfo decodeBounds(ByteBuffer data) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decodeBuffer(data, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        return new ImageInfo(options.outWidth, options.outHeight, options.outMimeType);
+    }
+
+    @Override
+    public Bitmap decode(ByteBuffer data, ImageInfo info, int sampleSize) {
+        final BitmapFactory.Options options = newDecodeOptions(info, sampleSize);
+        addInBitmapOptions(options);
+        try {
+            return decodeBuffer(data, options);
+        } catch (IllegalArgumentException e) {
+            retryWithoutInBitmap(options, e);
+            return decodeBuffer(data, options);
+        }
+    }
+
+    @Override
+    public Bitmap decodeRegion(ByteBuffer data, ImageInfo info, int left, int top, int right, int bottom,
+                               int sampleSize) throws IOException {
+        BitmapRegionDecoder regionDecoder;
+        if (data.hasArray()) {
+            regionDecoder = BitmapRegionDecoder.newInstance(
+                    data.array(), data.arrayOffset() + data.position(), data.remaining(), false);
+        } else {
+            regionDecoder = BitmapRegionDecoder.newInstance(new ByteBufferInputStream(data), false);
+        }
+        if (regionDecoder == null) {
+            return null;
+        }
+        try {
+            return decodeRegion(regionDecoder, info.getMimeType(), new Rect(left, top, right, bottom), sampleSize);
+        } finally {
+            regionDecoder.recycle();
+        }
+    }
+
+    /**
+     * Opens a region decoder on the image file {@code fd} for decoding many
+     * regions of it, e.g. the tiles of a {@link TiledImage}. It reads the
+     * parts of the file a region needs instead of holding the image in memory.
+     *
+     * @return null if the image can't be decoded by regions, e.g. a GIF.
+     */
+    public BitmapRegionDecoder newRegionDecoder(FileDescriptor fd) throws IOException {
+        return BitmapRegionDecoder.newInstance(fd, false);
+    }
+
+    /**
+     * Decodes {@code rect} with a region decoder which stays open, reusing a
+     * pooled bitmap of the sampled size of the region.
+     *
+     * @param sampleSize a power of 2, every {@code sampleSize}th pixel is decoded.
+     * @return null if the region couldn't be decoded.
+     */
+    public Bitmap decodeRegion(BitmapRegionDecoder regionDecoder, String mimeType, Rect rect, int sampleSize) {
+        // 区域的尺寸作为复用Bitmap的尺寸
+        final BitmapFactory.Options options = newDecodeOptions(
+                new ImageInfo(rect.width(), rect.height(), mimeType), sampleSize);
+        addInBitmapOptions(options);
+        try {
+            return regionDecoder.decodeRegion(rect, options);
+        } catch (IllegalArgumentException e) {
+            retryWithoutInBitmap(options, e);
+            return regionDecoder.decodeRegion(rect, options);
+        }
+    }
+
+    /**
+     * Options of a real decode, carrying the probed bounds as
+     * {@link #addInBitmapOptions} needs them.
+     */
+    private static BitmapFactory.Options newDecodeOptions(ImageInfo info, int sampleSize) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.outWidth = info.getWidth();
+        options.outHeight = info.getHeight();
+        options.outMimeType = info.getMimeType();
+        options.inSampleSize = sampleSize;
+        return options;
+    }
+
+    /**
+     * Heap buffers are decoded in place, others (e.g. memory-mapped files)
+     * through a stream over the buffer.
+     */
+    private static Bitmap decodeBuffer(ByteBuffer data, BitmapFactory.Options options) {
+        if (data.hasArray()) {
+            return BitmapFactory.decodeByteArray(
+                    data.array(), data.arrayOffset() + data.position(), data.remaining(), options);
+        }
+        return BitmapFactory.decodeStream(new ByteBufferInputStream(data), null, options);
+    }
+
+
+    /**
+     * 从只能读取一次的流(如网络下载)中获取调整采样率的图片, 读取尺寸的字节
+     * 用mark/reset重新交给解码, 流本身不会被读取两次
+     *
+     * @param in must support mark/reset, e.g. a BufferedInputStream.
+     * @throws IOException if reading the bounds needed more than
+     *                     {@link #STREAM_MARK_LIMIT} bytes, or the pooled bitmap
+     *                     didn't fit. The stream can't be decoded again then.
+     */
+    public Bitmap decodeSampledBmpFromStream(InputStream in, int reqWidth, int reqHeight) throws IOException {
+        return decodeSampledBmpFromStream(in, null, reqWidth, reqHeight);
+    }
+
+    /**
+     * @param info the bounds parsed from the header, e.g. by
+     *             {@link ImageHeaderParser#parse(InputStream, int)}. Null to
+     *             read them with BitmapFactory.
+     * @see #decodeSampledBmpFromStream(InputStream, int, int)
+     */
+    public Bitmap decodeSampledBmpFromStream(InputStream in, ImageInfo info, int reqWidth, int reqHeight)
+            throws IOException {
+        final BitmapFactory.Options options;
+        if (info != null) {
+            options = newDecodeOptions(info, 1);
+        } else {
+            if (!in.markSupported()) {
+                throw new IllegalArgumentException("stream doesn't support mark/reset");
+            }
+            options = new BitmapFactory.Options();
+            in.mark(STREAM_MARK_LIMIT);
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeStream(in, null, options);
+            options.inJustDecodeBounds = false;
+            in.reset();
+        }
+        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+        addInBitmapOptions(options);
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } catch (IllegalArgumentException e) {
+            // 流已被读过, 不能像其他来源一样重新解码
+            retryWithoutInBitmap(options, e);
+            throw new IOException("can't reuse bitmap and the stream is consumed", e);
+        }
+    }
+
+
+    /**
+     * 从Bitmap池中取出可复用的Bitmap, 设置在Options的inBitmap属性中.
+     * 解码出的Bitmap是可变的, 以后也能放回池中复用.
+     */
+    private void addInBitmapOptions(BitmapFactory.Options options) {
+        options.inMutable = true;
+        if (mBitmapPool == null) {
+            return;
+        }
+        // KitKat以前只能复用JPEG和PNG
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT
+                && !"image/jpeg".equals(options.outMimeType)
+                && !"image/png".equals(options.outMimeType)) {
+            return;
+        }
+        options.inBitmap = mBitmapPool.get(options);
+    }
+
+    /**
+     * The pooled bitmap didn't fit after all, give it back and decode into a new one.
+     */
+    private void retryWithoutInBitmap(BitmapFactory.Options options, IllegalArgumentException e) {
+        if (options.inBitmap == null) {
+            throw e;
+        }
+        Log.w(TAG, "decode: can't reuse bitmap, allocate a new one", e);
+        mBitmapPool.put(options.inBitmap);
+        options.inBitmap = null;
     }
 }
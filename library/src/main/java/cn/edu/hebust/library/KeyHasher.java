@@ -0,0 +1,303 @@
+package cn.edu.hebust.library;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Derives Disk-Cache and Memory-Cache keys from uris: 32 lowercase hex
+ * chars of a 128 bit hash of the uri's UTF-8 bytes.
+ * <p>
+ * Keys are derived on the UI thread for every bind, so a lookup allocates
+ * nothing but the key itself: each thread reuses its digest and buffers,
+ * and recently hashed uris are answered from a small LRU map.
+ */
+public final class KeyHasher {
+
+    public enum Algorithm {
+        /**
+         * MD5, the keys earlier versions wrote to the Disk-Cache.
+         */
+        MD5,
+        /**
+         * MurmurHash3 x64 128, non-cryptographic and several times faster
+         * than MD5. Switching to it misses every entry cached under MD5 keys
+         * until they are evicted.
+         */
+        MURMUR3_128
+    }
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final int HASH_LENGTH = 16;
+
+    private final Algorithm mAlgorithm;
+    private final int mRecentCount;
+    // Guarded by itself.
+    private final LinkedHashMap<String, String> mRecentKeys;
+    private final ThreadLocal<HashState> mHashState = new ThreadLocal<HashState>() {
+        @Override
+        protected HashState initialValue() {
+            return new HashState(mAlgorithm);
+        }
+    };
+
+    private int mHitCount;
+    private int mMissCount;
+
+    /**
+     * @param recentCount how many uri to key mappings are remembered, 0 to
+     *                    hash every time.
+     */
+    public KeyHasher(Algorithm algorithm, int recentCount) {
+        if (algorithm == null) {
+            throw new IllegalArgumentException("algorithm == null");
+        }
+        if (recentCount < 0) {
+            throw new IllegalArgumentException("recentCount < 0");
+        }
+        mAlgorithm = algorithm;
+        mRecentCount = recentCount;
+        mRecentKeys = new LinkedHashMap<String, String>(0, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > mRecentCount;
+            }
+        };
+    }
+
+    public Algorithm getAlgorithm() {
+        return mAlgorithm;
+    }
+
+    /**
+     * Returns the key of {@code uri}.
+     */
+    public String hashKey(String uri) {
+        if (mRecentCount > 0) {
+            synchronized (mRecentKeys) {
+                String key = mRecentKeys.get(uri);
+                if (key != null) {
+                    mHitCount++;
+                    return key;
+                }
+                mMissCount++;
+            }
+        }
+        String key = mHashState.get().hash(uri);
+        if (mRecentCount > 0) {
+            synchronized (mRecentKeys) {
+                mRecentKeys.put(uri, key);
+            }
+        }
+        return key;
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mRecentKeys) {
+            int accesses = mHitCount + mMissCount;
+            int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+            return String.format("KeyHasher[algorithm=%s,recent=%d,hits=%d,misses=%d,hitRate=%d%%]",
+                    mAlgorithm, mRecentCount, mHitCount, mMissCount, hitPercent);
+        }
+    }
+
+    /**
+     * Digest and buffers owned by one thread.
+     */
+    private static final class HashState {
+        private final MessageDigest mDigest;
+        private final byte[] mHash = new byte[HASH_LENGTH];
+        private final char[] mHex = new char[HASH_LENGTH * 2];
+        // UTF-8 of the uri, grows to the longest uri seen.
+        private byte[] mInput = new byte[256];
+
+        HashState(Algorithm algorithm) {
+            MessageDigest digest = null;
+            if (algorithm == Algorithm.MD5) {
+                try {
+                    digest = MessageDigest.getInstance("MD5");
+                } catch (NoSuchAlgorithmException e) {
+                    // fall back to MurmurHash3
+                }
+            }
+            mDigest = digest;
+        }
+
+        String hash(String uri) {
+            int length = encodeUtf8(uri);
+            if (mDigest != null) {
+                mDigest.update(mInput, 0, length);
+                try {
+                    mDigest.digest(mHash, 0, HASH_LENGTH);
+                } catch (DigestException e) {
+                    throw new AssertionError(e);
+                }
+            } else {
+                murmur3(mInput, length, mHash);
+            }
+            for (int i = 0; i < HASH_LENGTH; i++) {
+                mHex[i * 2] = HEX_DIGITS[(mHash[i] >> 4) & 0xF];
+                mHex[i * 2 + 1] = HEX_DIGITS[mHash[i] & 0xF];
+            }
+            return new String(mHex);
+        }
+
+        /**
+         * Writes the UTF-8 bytes of {@code s} into {@link #mInput}, same as
+         * {@code s.getBytes("UTF-8")}: unpaired surrogates become '?'.
+         *
+         * @return the number of bytes written.
+         */
+        private int encodeUtf8(String s) {
+            int length = s.length();
+            if (mInput.length < length * 3) {
+                mInput = new byte[length * 3];
+            }
+            byte[] out = mInput;
+            int pos = 0;
+            for (int i = 0; i < length; i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    out[pos++] = (byte) c;
+                } else if (c < 0x800) {
+                    out[pos++] = (byte) (0xC0 | (c >> 6));
+                    out[pos++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < length
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                    out[pos++] = (byte) (0xF0 | (codePoint >> 18));
+                    out[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    out[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    out[pos++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    out[pos++] = '?';
+                } else {
+                    out[pos++] = (byte) (0xE0 | (c >> 12));
+                    out[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    out[pos++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+            return pos;
+        }
+    }
+
+    /**
+     * MurmurHash3 x64 128 with seed 0, the two longs written little endian
+     * into {@code out}.
+     */
+    static void murmur3(byte[] data, int length, byte[] out) {
+        final long c1 = 0x87c37b91114253d5L;
+        final long c2 = 0x4cf5ad432745937fL;
+        long h1 = 0;
+        long h2 = 0;
+
+        int blocks = length / 16;
+        for (int i = 0; i < blocks; i++) {
+            long k1 = getLongLE(data, i * 16);
+            long k2 = getLongLE(data, i * 16 + 8);
+
+            k1 *= c1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= c2;
+            h1 ^= k1;
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            k2 *= c2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= c1;
+            h2 ^= k2;
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        int tail = blocks * 16;
+        long k1 = 0;
+        long k2 = 0;
+        switch (length & 15) {
+            case 15:
+                k2 ^= (long) (data[tail + 14] & 0xFF) << 48;
+            case 14:
+                k2 ^= (long) (data[tail + 13] & 0xFF) << 40;
+            case 13:
+                k2 ^= (long) (data[tail + 12] & 0xFF) << 32;
+            case 12:
+                k2 ^= (long) (data[tail + 11] & 0xFF) << 24;
+            case 11:
+                k2 ^= (long) (data[tail + 10] & 0xFF) << 16;
+            case 10:
+                k2 ^= (long) (data[tail + 9] & 0xFF) << 8;
+            case 9:
+                k2 ^= (long) (data[tail + 8] & 0xFF);
+                k2 *= c2;
+                k2 = Long.rotateLeft(k2, 33);
+                k2 *= c1;
+                h2 ^= k2;
+            case 8:
+                k1 ^= (long) (data[tail + 7] & 0xFF) << 56;
+            case 7:
+                k1 ^= (long) (data[tail + 6] & 0xFF) << 48;
+            case 6:
+                k1 ^= (long) (data[tail + 5] & 0xFF) << 40;
+            case 5:
+                k1 ^= (long) (data[tail + 4] & 0xFF) << 32;
+            case 4:
+                k1 ^= (long) (data[tail + 3] & 0xFF) << 24;
+            case 3:
+                k1 ^= (long) (data[tail + 2] & 0xFF) << 16;
+            case 2:
+                k1 ^= (long) (data[tail + 1] & 0xFF) << 8;
+            case 1:
+                k1 ^= (long) (data[tail] & 0xFF);
+                k1 *= c1;
+                k1 = Long.rotateLeft(k1, 31);
+                k1 *= c2;
+                h1 ^= k1;
+            default:
+                break;
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        h1 += h2;
+        h2 += h1;
+
+        putLongLE(out, 0, h1);
+        putLongLE(out, 8, h2);
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    private static long getLongLE(byte[] b, int off) {
+        return (b[off] & 0xFFL)
+                | (b[off + 1] & 0xFFL) << 8
+                | (b[off + 2] & 0xFFL) << 16
+                | (b[off + 3] & 0xFFL) << 24
+                | (b[off + 4] & 0xFFL) << 32
+                | (b[off + 5] & 0xFFL) << 40
+                | (b[off + 6] & 0xFFL) << 48
+                | (b[off + 7] & 0xFFL) << 56;
+    }
+
+    private static void putLongLE(byte[] b, int off, long v) {
+        for (int i = 0; i < 8; i++) {
+            b[off + i] = (byte) (v >>> (8 * i));
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package cn.edu.hebust.library;
+
+import android.os.SystemClock;
+import android.widget.AbsListView;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Prefetches the images of the items which are about to scroll into an
+ * {@link AbsListView} (ListView, GridView), set it with
+ * {@link AbsListView#setOnScrollListener}. Items ahead in the scroll
+ * direction are prefetched, more of them the faster the list scrolls.
+ * <p>
+ * Prefetches of items which leave that range are cancelled: when the
+ * direction reverses, and when they come on screen, where bindBmp takes over.
+ * During a fast fling images are only prefetched into Disk-Cache, most of
+ * them fly past without being shown.
+ */
+public class ListPrefetcher implements AbsListView.OnScrollListener {
+
+    /**
+     * Provides the uri of the image of a list item, usually the adapter.
+     */
+    public interface UriProvider {
+        /**
+         * @return the uri of the image of the item at {@code position}, or null if it has none.
+         */
+        String getImageUri(int position);
+    }
+
+    // 默认预取的列表项数, 约为一屏
+    private static final int DEFAULT_PREFETCH_COUNT = 12;
+    // 按当前速度预取之后多长时间内会出现的列表项
+    private static final long LOOKAHEAD_MILLIS = 500;
+    // 每秒滑过的列表项超过此值时只预取到Disk-Cache
+    private static final int FAST_SCROLL_ITEMS_PER_SECOND = 40;
+
+    private final ImageLoader mImageLoader;
+    private final UriProvider mUriProvider;
+    private final int mReqWidth;
+    private final int mReqHeight;
+    private int mPrefetchCount = DEFAULT_PREFETCH_COUNT;
+
+    // 尚未取消的预取, 以列表项位置为key, 只在UI线程访问
+    private final Map<Integer, Prefetch> mPrefetches = new HashMap<Integer, Prefetch>();
+    private int mLastFirstVisible = -1;
+    private long mLastScrollTime;
+    // 1向下(位置增大), -1向上
+    private int mDirection = 1;
+    // 每秒滑过的列表项数
+    private float mVelocity;
+
+    /**
+     * @param reqWidth  the size the items bind their images at, see
+     *                  {@link ImageLoader#bindBmp(String, android.widget.ImageView, int, int)}.
+     */
+    public ListPrefetcher(ImageLoader imageLoader, UriProvider uriProvider, int reqWidth, int reqHeight) {
+        mImageLoader = imageLoader;
+        mUriProvider = uriProvider;
+        mReqWidth = reqWidth;
+        mReqHeight = reqHeight;
+    }
+
+    /**
+     * Sets how many items ahead are prefetched while the list scrolls slowly
+     * or rests, twice as many at most while it scrolls fast.
+     */
+    public ListPrefetcher setPrefetchCount(int prefetchCount) {
+        if (prefetchCount < 0) {
+            throw new IllegalArgumentException("prefetchCount < 0");
+        }
+        mPrefetchCount = prefetchCount;
+        return this;
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+        if (scrollState == SCROLL_STATE_IDLE) {
+            // 停止后按慢速预取, 解码到Memory-Cache
+            mVelocity = 0;
+            prefetch(view.getFirstVisiblePosition(),
+                    view.getLastVisiblePosition() - view.getFirstVisiblePosition() + 1,
+                    view.getAdapter() != null ? view.getAdapter().getCount() : 0);
+        }
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+        long now = SystemClock.uptimeMillis();
+        if (firstVisibleItem != mLastFirstVisible) {
+            if (mLastFirstVisible != -1) {
+                int delta = firstVisibleItem - mLastFirstVisible;
+                mDirection = delta > 0 ? 1 : -1;
+                long elapsed = Math.max(1, now - mLastScrollTime);
+                mVelocity = Math.abs(delta) * 1000f / elapsed;
+            }
+            mLastFirstVisible = firstVisibleItem;
+            mLastScrollTime = now;
+        }
+        prefetch(firstVisibleItem, visibleItemCount, totalItemCount);
+    }
+
+    /**
+     * Cancels every prefetch, e.g. when the list is left.
+     */
+    public void cancelAll() {
+        for (Map.Entry<Integer, Prefetch> entry : mPrefetches.entrySet()) {
+            entry.getValue().cancel();
+        }
+        mPrefetches.clear();
+    }
+
+    private void prefetch(int firstVisible, int visibleCount, int totalCount) {
+        int count = Math.min(mPrefetchCount * 2,
+                mPrefetchCount + (int) (mVelocity * LOOKAHEAD_MILLIS / 1000));
+        int start;
+        int end;
+        if (mDirection > 0) {
+            start = firstVisible + visibleCount;
+            end = Math.min(totalCount, start + count);
+        } else {
+            end = firstVisible;
+            start = Math.max(0, end - count);
+        }
+        boolean decode = mVelocity < FAST_SCROLL_ITEMS_PER_SECOND;
+
+        // 不在预取范围内的: 反向滑动后留在身后的, 以及已经显示出来的
+        for (Iterator<Map.Entry<Integer, Prefetch>> i = mPrefetches.entrySet().iterator(); i.hasNext(); ) {
+            Map.Entry<Integer, Prefetch> entry = i.next();
+            int position = entry.getKey();
+            if (position < start || position >= end) {
+                entry.getValue().cancel();
+                i.remove();
+            }
+        }
+        // 先预取离屏幕近的, 相同优先级下后提交的先执行
+        for (int n = count - 1; n >= 0; n--) {
+            int position = mDirection > 0 ? start + n : end - 1 - n;
+            if (position < start || position >= end) {
+                continue;
+            }
+            Prefetch previous = mPrefetches.get(position);
+            if (previous != null && previous.mDecode == decode) {
+                continue;
+            }
+            String uri = mUriProvider.getImageUri(position);
+            if (uri == null) {
+                continue;
+            }
+            Prefetch prefetch = new Prefetch(uri, decode);
+            prefetch.start();
+            mPrefetches.put(position, prefetch);
+            if (previous != null) {
+                // 后取消, 正在进行的下载由新的预取接着等待
+                previous.cancel();
+            }
+        }
+    }
+
+    private final class Prefetch {
+        final String mUri;
+        final boolean mDecode;
+
+        Prefetch(String uri, boolean decode) {
+            mUri = uri;
+            mDecode = decode;
+        }
+
+        void start() {
+            if (mDecode) {
+                mImageLoader.prefetch(mUri, mReqWidth, mReqHeight, ImageLoader.Priority.PREFETCH);
+            } else {
+                mImageLoader.prefetchToDisk(mUri, ImageLoader.Priority.PREFETCH);
+            }
+        }
+
+        void cancel() {
+            if (mDecode) {
+                mImageLoader.cancelPrefetch(mUri, mReqWidth, mReqHeight);
+            } else {
+                mImageLoader.cancelPrefetchToDisk(mUri);
+            }
+        }
+    }
+}
@@ -0,0 +1,345 @@
+package cn.edu.hebust.library;
+
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * A cache like {@link android.util.LruCache}, whose maximum size can be
+ * changed at runtime on every API level: {@link #resize(int)} and
+ * {@link #trimToSize(int)} are only available from API 21 and 17 there.
+ * Which entry is evicted is up to its {@link EvictionPolicy}, LRU by default.
+ * <p>
+ * Sizes are in the units of {@link #sizeOf}, an entry removed from the cache
+ * is reported to {@link #entryRemoved} outside of the cache's lock.
+ * <p>
+ * An entry whose value is in use elsewhere can be {@link #pin pinned}: the
+ * cache lets go of the value, but the policy keeps the key in its place, so
+ * the accesses while it is in use count when it is {@link #unpin unpinned}.
+ */
+public class MemoryCache<K, V> {
+
+    private final HashMap<K, V> mMap;
+    // Guarded by this.
+    private final EvictionPolicy<K> mPolicy;
+    // Keys whose values are held by the callers of pin(). Guarded by this.
+    private final HashSet<K> mPinned = new HashSet<K>();
+
+    // Guarded by this.
+    private int mSize;
+    private int mMaxSize;
+
+    private int mPutCount;
+    private int mEvictionCount;
+    private int mHitCount;
+    private int mMissCount;
+
+    /**
+     * @param maxSize the maximum sum of the sizes of the entries.
+     */
+    public MemoryCache(int maxSize) {
+        this(maxSize, EvictionPolicy.<K>create(EvictionPolicy.Type.LRU));
+    }
+
+    /**
+     * @param policy decides what is evicted, not shared with other caches.
+     */
+    public MemoryCache(int maxSize, EvictionPolicy<K> policy) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        if (policy == null) {
+            throw new IllegalArgumentException("policy == null");
+        }
+        mMaxSize = maxSize;
+        mMap = new HashMap<K, V>();
+        mPolicy = policy;
+        mPolicy.setMaxSize(maxSize);
+    }
+
+    /**
+     * Changes the maximum size and evicts entries until the cache fits.
+     */
+    public void resize(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        synchronized (this) {
+            mMaxSize = maxSize;
+            mPolicy.setMaxSize(maxSize);
+        }
+        trimToSize(maxSize);
+    }
+
+    /**
+     * Returns the value for {@code key}, or null if it isn't cached. The
+     * access counts for the eviction policy, hit or not. A pinned key is a
+     * hit for the policy, but null is returned and neither statistic counts it.
+     */
+    public final V get(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        synchronized (this) {
+            mPolicy.recordAccess(key);
+            V value = mMap.get(key);
+            if (value != null) {
+                mHitCount++;
+                mPolicy.onHit(key);
+                return value;
+            }
+            if (mPinned.contains(key)) {
+                mPolicy.onHit(key);
+                return null;
+            }
+            mMissCount++;
+            return null;
+        }
+    }
+
+    /**
+     * Returns the value for {@code key} like {@link #get}, without counting
+     * the access for the eviction policy or the statistics.
+     */
+    public synchronized final V peek(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        return mMap.get(key);
+    }
+
+    /**
+     * Caches {@code value} for {@code key}, the policy may evict it right away.
+     *
+     * @return the previous value for {@code key}.
+     */
+    public final V put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+        V previous;
+        synchronized (this) {
+            mPutCount++;
+            mPolicy.recordAccess(key);
+            int size = safeSizeOf(key, value);
+            mSize += size;
+            previous = mMap.put(key, value);
+            if (previous != null) {
+                mSize -= safeSizeOf(key, previous);
+                mPolicy.onRemove(key);
+            } else if (mPinned.remove(key)) {
+                mPolicy.onRemove(key);
+            }
+            mPolicy.onAdd(key, size);
+        }
+        if (previous != null) {
+            entryRemoved(false, key, previous, value);
+        }
+        trimToSize(maxSize());
+        return previous;
+    }
+
+    /**
+     * Caches {@code key} pinned, for a value which is in use right away.
+     * Like {@link #put} followed by {@link #pin}, but never evicted in between.
+     *
+     * @return the previous value for {@code key}.
+     */
+    public final V putPinned(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+        V previous;
+        synchronized (this) {
+            mPutCount++;
+            mPolicy.recordAccess(key);
+            previous = mMap.remove(key);
+            if (previous != null) {
+                mSize -= safeSizeOf(key, previous);
+                mPolicy.onRemove(key);
+            } else if (mPinned.contains(key)) {
+                mPolicy.onRemove(key);
+            }
+            mPinned.add(key);
+            mPolicy.onAdd(key, safeSizeOf(key, value));
+            mPolicy.onPin(key);
+        }
+        if (previous != null) {
+            entryRemoved(false, key, previous, value);
+        }
+        return previous;
+    }
+
+    /**
+     * Takes the value of the cached {@code key} out of the cache while the
+     * caller uses it. The key keeps its place with the eviction policy and
+     * lookups still count there, but it doesn't count towards the size and
+     * isn't evicted until {@link #unpin} puts the value back. Nothing is
+     * reported to {@link #entryRemoved}.
+     *
+     * @return the value, or null if {@code key} isn't cached or pinned already.
+     */
+    public final V pin(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        synchronized (this) {
+            V value = mMap.remove(key);
+            if (value != null) {
+                mSize -= safeSizeOf(key, value);
+                mPinned.add(key);
+                mPolicy.onPin(key);
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Puts {@code value} back for the key {@link #pin} took it from, at the
+     * place the key kept with the policy, and evicts what no longer fits.
+     * A key which isn't pinned anymore is {@link #put}.
+     */
+    public final void unpin(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+        boolean pinned;
+        synchronized (this) {
+            pinned = mPinned.remove(key);
+            if (pinned) {
+                mMap.put(key, value);
+                mSize += safeSizeOf(key, value);
+                mPolicy.onUnpin(key);
+            }
+        }
+        if (pinned) {
+            trimToSize(maxSize());
+        } else {
+            put(key, value);
+        }
+    }
+
+    /**
+     * Evicts entries the policy chooses until the total size is at most {@code maxSize}.
+     * Unlike {@link #resize(int)} the maximum size of the cache is unchanged,
+     * so the cache fills up again.
+     *
+     * @param maxSize 0 or -1 to evict everything.
+     */
+    public void trimToSize(int maxSize) {
+        while (true) {
+            K key;
+            V value;
+            synchronized (this) {
+                if (mSize < 0 || (mMap.isEmpty() && mSize != 0)) {
+                    throw new IllegalStateException(getClass().getName()
+                            + ".sizeOf() is reporting inconsistent results!");
+                }
+                if (mSize <= maxSize || mMap.isEmpty()) {
+                    break;
+                }
+                key = mPolicy.victim();
+                value = key != null ? mMap.remove(key) : null;
+                if (value == null) {
+                    throw new IllegalStateException(mPolicy.getClass().getName()
+                            + ".victim() returned a key which isn't cached: " + key);
+                }
+                mPolicy.onRemove(key);
+                mSize -= safeSizeOf(key, value);
+                mEvictionCount++;
+            }
+            entryRemoved(true, key, value, null);
+        }
+    }
+
+    /**
+     * Removes the entry for {@code key}, a pinned key is forgotten.
+     *
+     * @return the removed value, or null if there was none or it is pinned.
+     */
+    public final V remove(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        V previous;
+        synchronized (this) {
+            previous = mMap.remove(key);
+            if (previous != null) {
+                mSize -= safeSizeOf(key, previous);
+                mPolicy.onRemove(key);
+            } else if (mPinned.remove(key)) {
+                mPolicy.onRemove(key);
+            }
+        }
+        if (previous != null) {
+            entryRemoved(false, key, previous, null);
+        }
+        return previous;
+    }
+
+    /**
+     * Called for entries that have been evicted or removed, or whose value
+     * was replaced. Called without holding the cache's lock.
+     *
+     * @param evicted  true if the entry was evicted to make space, false if
+     *                 it was removed or replaced.
+     * @param newValue the new value for {@code key}, or null if the entry was removed.
+     */
+    protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue) {
+    }
+
+    /**
+     * Returns the size of the entry in user-defined units, 1 by default so
+     * the sizes count entries. The size of an entry mustn't change while it
+     * is cached.
+     */
+    protected int sizeOf(K key, V value) {
+        return 1;
+    }
+
+    private int safeSizeOf(K key, V value) {
+        int result = sizeOf(key, value);
+        if (result < 0) {
+            throw new IllegalStateException("Negative size: " + key + "=" + value);
+        }
+        return result;
+    }
+
+    /**
+     * Evicts every entry, see {@link #trimToSize(int)}.
+     */
+    public final void evictAll() {
+        trimToSize(-1);
+    }
+
+    public synchronized final int size() {
+        return mSize;
+    }
+
+    public synchronized final int maxSize() {
+        return mMaxSize;
+    }
+
+    public synchronized final int hitCount() {
+        return mHitCount;
+    }
+
+    public synchronized final int missCount() {
+        return mMissCount;
+    }
+
+    public synchronized final int putCount() {
+        return mPutCount;
+    }
+
+    public synchronized final int evictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized final String toString() {
+        int accesses = mHitCount + mMissCount;
+        int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+        return String.format("MemoryCache[size=%d,maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]",
+                mSize, mMaxSize, mHitCount, mMissCount, hitPercent);
+    }
+}
@@ -0,0 +1,54 @@
+package cn.edu.hebust.library;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * Downloads images for the network stage of the ImageLoader. Implementations
+ * are called from several network threads at once and should reuse their
+ * connections, the ImageLoader closes every response it gets.
+ *
+ * @see HttpUrlFetcher the HttpURLConnection implementation
+ */
+public interface NetworkFetcher {
+
+    /**
+     * Sends a GET request for {@code uri}.
+     *
+     * @param headers extra request headers, may be null.
+     * @return the response, whatever its status code; the caller must close it.
+     * @throws IOException if there is no response, e.g. the host can't be reached.
+     */
+    Response fetch(String uri, Map<String, String> headers) throws IOException;
+
+    /**
+     * The response to a request. Closing it releases its connection, for
+     * reuse if the body was read completely or is short enough to be skipped.
+     */
+    interface Response extends Closeable {
+
+        /**
+         * Returns the HTTP status code, e.g. 200.
+         */
+        int getCode();
+
+        /**
+         * Returns the value of the response header {@code name}, null if there is none.
+         */
+        String getHeader(String name);
+
+        /**
+         * Returns the length of the body in bytes, -1 if unknown.
+         */
+        long getContentLength();
+
+        /**
+         * Returns the body, the error page if the code isn't a success. The
+         * same stream is returned by every call, closing it doesn't release
+         * the connection.
+         */
+        InputStream getBody() throws IOException;
+    }
+}
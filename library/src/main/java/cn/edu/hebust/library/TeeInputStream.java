@@ -0,0 +1,93 @@
+package cn.edu.hebust.library;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An InputStream which copies every byte read from it into an OutputStream,
+ * so a download can be decoded and written to the Disk-Cache in one pass.
+ * Skipped bytes are copied too. Wrap it in a BufferedInputStream for
+ * mark/reset, the buffered bytes have been copied already.
+ */
+final class TeeInputStream extends FilterInputStream {
+
+    private final OutputStream mOut;
+    private final byte[] mSkipBuffer;
+    private long mCount;
+
+    TeeInputStream(InputStream in, OutputStream out, int bufferSize) {
+        super(in);
+        mOut = out;
+        mSkipBuffer = new byte[bufferSize];
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b != -1) {
+            mOut.write(b);
+            mCount++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int count = in.read(b, off, len);
+        if (count > 0) {
+            mOut.write(b, off, count);
+            mCount += count;
+        }
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n) {
+            int count = read(mSkipBuffer, 0, (int) Math.min(n - skipped, mSkipBuffer.length));
+            if (count == -1) {
+                break;
+            }
+            skipped += count;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void mark(int readLimit) {
+    }
+
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    /**
+     * Returns the number of bytes copied so far.
+     */
+    long getCount() {
+        return mCount;
+    }
+
+    /**
+     * Copies the rest of the stream, which the decoder didn't need.
+     *
+     * @return the number of bytes copied.
+     */
+    long drain() throws IOException {
+        long total = 0;
+        int count;
+        while ((count = read(mSkipBuffer, 0, mSkipBuffer.length)) != -1) {
+            total += count;
+        }
+        return total;
+    }
+}
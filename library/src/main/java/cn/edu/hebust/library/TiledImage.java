@@ -0,0 +1,589 @@
+package cn.edu.hebust.library;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A very large image, e.g. a 4000x3000 wallpaper, decoded tile by tile for
+ * zooming and panning, see {@link ImageLoader#openTiledImage}. Only the tiles
+ * of the visible region are decoded, at the sample size of the current zoom,
+ * by one {@link BitmapRegionDecoder} which reads the Disk-Cache file, so the
+ * image is never decoded whole at full resolution.
+ * <p>
+ * Tiles are {@link #TILE_SIZE} pixels square after sampling and cached in
+ * Memory-Cache by (uri, sample size, column, row). The visible tiles are
+ * pinned like the bitmaps ImageViews show, the tiles around the viewport are
+ * prefetched into Memory-Cache, further ahead in the direction it pans. Memory
+ * use is bounded by the viewport and Memory-Cache, not by the image.
+ * <p>
+ * A view draws {@link #getBaseBitmap()} scaled to the whole image, then the
+ * tiles of {@link #getTiles(List)} on top of it at their regions. All methods
+ * must be called in UI-Thread, the {@link Callback} is called there too.
+ */
+public class TiledImage {
+
+    private static final String TAG = "TiledImage";
+
+    /**
+     * Edge of a decoded tile in pixels.
+     */
+    public static final int TILE_SIZE = 256;
+    // 低分辨率的整张图片的最大边长, 放大后先显示它, 再显示清晰的图块
+    private static final int BASE_MAX_SIZE = 1024;
+    // 在可见图块周围预取的图块数, 向平移的方向多预取一些
+    private static final int PREFETCH_MARGIN = 1;
+    private static final int PAN_LOOKAHEAD = 2;
+
+    // 任务优先级, 数值小的先执行
+    private static final int PRIORITY_OPEN = 0;
+    private static final int PRIORITY_VISIBLE = 1;
+    private static final int PRIORITY_PREFETCH = 2;
+
+    /**
+     * The order in which the tile thread runs jobs: opening and closing
+     * images first, then visible tiles before prefetched ones, the most
+     * recently requested first, which are the nearest to where the user pans.
+     */
+    static final Comparator<Runnable> JOB_ORDER = new Comparator<Runnable>() {
+        @Override
+        public int compare(Runnable lhs, Runnable rhs) {
+            Job l = (Job) lhs;
+            Job r = (Job) rhs;
+            if (l.mPriority != r.mPriority) {
+                return l.mPriority - r.mPriority;
+            }
+            return l.mSequence > r.mSequence ? -1 : (l.mSequence == r.mSequence ? 0 : 1);
+        }
+    };
+
+    private static final AtomicLong sJobSequence = new AtomicLong();
+
+    /**
+     * Notified in UI-Thread about the progress of a TiledImage.
+     */
+    public interface Callback {
+        /**
+         * The size and base bitmap of the image are known, set a viewport now.
+         */
+        void onReady(TiledImage image);
+
+        /**
+         * Tiles of the viewport were decoded, draw the image again.
+         */
+        void onTilesChanged(TiledImage image);
+
+        /**
+         * The image couldn't be downloaded or can't be decoded by regions.
+         */
+        void onLoadFailed(TiledImage image);
+    }
+
+    /**
+     * A decoded tile and the region of the image it shows.
+     */
+    public static final class Tile {
+        private final String mKey;
+        private final int mSampleSize;
+        private final int mCol;
+        private final int mRow;
+        private final Rect mRegion;
+        // null while the tile is decoding
+        private final Bitmap mBitmap;
+
+        Tile(String key, int sampleSize, int col, int row, Rect region, Bitmap bitmap) {
+            mKey = key;
+            mSampleSize = sampleSize;
+            mCol = col;
+            mRow = row;
+            mRegion = region;
+            mBitmap = bitmap;
+        }
+
+        /**
+         * Returns the region in pixels of the full image, don't modify it.
+         */
+        public Rect getRegion() {
+            return mRegion;
+        }
+
+        public Bitmap getBitmap() {
+            return mBitmap;
+        }
+    }
+
+    private final ImageLoader mImageLoader;
+    private final ThreadPoolExecutor mExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final String mUri;
+    private final String mKey;
+    private final Callback mCallback;
+
+    // 下载结束后在tile线程打开, 由结束下载的线程调用
+    private final Runnable mOnLoaded = new Runnable() {
+        @Override
+        public void run() {
+            mExecutor.execute(new Job(PRIORITY_OPEN) {
+                @Override
+                public void run() {
+                    if (mClosed) {
+                        return;
+                    }
+                    final boolean opened = openDecoder();
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (mClosed) {
+                                return;
+                            }
+                            if (opened) {
+                                mReady = true;
+                                mCallback.onReady(TiledImage.this);
+                            } else {
+                                mCallback.onLoadFailed(TiledImage.this);
+                            }
+                        }
+                    });
+                }
+            });
+        }
+    };
+
+    // 以下在tile线程中写入, 通过mMainHandler发布到UI线程
+    private int mWidth;
+    private int mHeight;
+    private String mMimeType;
+    private int mBaseSampleSize;
+    private Bitmap mBaseBitmap;
+    // 图块在Memory-Cache中的key的前缀, 包含下载时间, 图片更新后不会命中旧的图块
+    private String mTileKeyPrefix;
+    private boolean mReady;
+    private volatile boolean mClosed;
+
+    // 只在tile线程访问
+    private DiskLruCache.Snapshot mSnapshot;
+    private BitmapRegionDecoder mRegionDecoder;
+
+    // 以下只在UI线程访问
+    // 当前视口中的图块, 已解码的被固定在Memory-Cache的活动层中
+    private final Map<String, Tile> mVisibleTiles = new HashMap<String, Tile>();
+    // 排队或正在解码的图块, 以图块的key区分
+    private final Map<String, TileJob> mPendingTiles = new HashMap<String, TileJob>();
+    // 图块的采样率, 0表示只显示基础图片
+    private int mSampleSize;
+    private int mFirstCol;
+    private int mFirstRow;
+    private int mLastCol;
+    private int mLastRow;
+    // 预取的范围, 包含视口
+    private int mPrefetchFirstCol;
+    private int mPrefetchFirstRow;
+    private int mPrefetchLastCol;
+    private int mPrefetchLastRow;
+    private int mLastCenterX = -1;
+    private int mLastCenterY = -1;
+
+    TiledImage(ImageLoader imageLoader, ThreadPoolExecutor executor, String uri, String key, Callback callback) {
+        mImageLoader = imageLoader;
+        mExecutor = executor;
+        mUri = uri;
+        mKey = key;
+        mCallback = callback;
+    }
+
+    /**
+     * Opens the region decoder on the tile thread once the image is in
+     * Disk-Cache. The download runs on the network pool, a large image
+     * doesn't hold up the tiles of other images.
+     */
+    void open() {
+        mImageLoader.loadToDisk(mUri, mKey, mOnLoaded);
+    }
+
+    /**
+     * Opens the Disk-Cache entry and decodes the base bitmap. Runs on the tile thread.
+     */
+    private boolean openDecoder() {
+        try {
+            mSnapshot = mImageLoader.getDiskSnapshot(mKey);
+            if (mSnapshot == null) {
+                return false;
+            }
+            FileInputStream in = (FileInputStream) mSnapshot.getInputStream(ImageLoader.DISK_CACHE_INDEX);
+            mRegionDecoder = mImageLoader.getResizer().newRegionDecoder(in.getFD());
+            if (mRegionDecoder == null) {
+                return false;
+            }
+            ImageMetadata metadata = ImageMetadata.decode(
+                    mSnapshot.getString(ImageLoader.DISK_CACHE_METADATA_INDEX));
+            ImageInfo info = metadata.getImageInfo();
+            mMimeType = info != null ? info.getMimeType() : null;
+            mWidth = mRegionDecoder.getWidth();
+            mHeight = mRegionDecoder.getHeight();
+            mTileKeyPrefix = mKey + "_tile" + metadata.getFetchTime();
+            mBaseSampleSize = 1;
+            while (mWidth / mBaseSampleSize > BASE_MAX_SIZE || mHeight / mBaseSampleSize > BASE_MAX_SIZE) {
+                mBaseSampleSize *= 2;
+            }
+            // 整张图片以最大的采样率解码, 与图块一样缓存
+            String baseKey = mTileKeyPrefix + "_base";
+            mBaseBitmap = mImageLoader.getTileFromMemCache(baseKey);
+            if (mBaseBitmap == null) {
+                mBaseBitmap = decodeRegion(new Rect(0, 0, mWidth, mHeight), mBaseSampleSize);
+                if (mBaseBitmap == null) {
+                    return false;
+                }
+                mImageLoader.addTileToMemCache(baseKey, mBaseBitmap);
+            }
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "openDecoder: " + mUri, e);
+            return false;
+        } finally {
+            if (mBaseBitmap == null) {
+                closeDecoder();
+            }
+        }
+    }
+
+    /**
+     * Decodes a region into a bitmap the caller holds a reference to.
+     */
+    private Bitmap decodeRegion(Rect region, int sampleSize) {
+        Bitmap bitmap = mImageLoader.getResizer().decodeRegion(mRegionDecoder, mMimeType, region, sampleSize);
+        if (bitmap != null) {
+            mImageLoader.retainTile(bitmap);
+        }
+        return bitmap;
+    }
+
+    private void closeDecoder() {
+        if (mRegionDecoder != null) {
+            mRegionDecoder.recycle();
+            mRegionDecoder = null;
+        }
+        DiskLruCache.closeQuietly(mSnapshot);
+        mSnapshot = null;
+    }
+
+    public String getUri() {
+        return mUri;
+    }
+
+    /**
+     * Returns true once {@link Callback#onReady} was called, until {@link #close()}.
+     */
+    public boolean isReady() {
+        return mReady && !mClosed;
+    }
+
+    /**
+     * Returns the width of the full image in pixels, 0 until it is ready.
+     */
+    public int getWidth() {
+        return mReady ? mWidth : 0;
+    }
+
+    /**
+     * Returns the height of the full image in pixels, 0 until it is ready.
+     */
+    public int getHeight() {
+        return mReady ? mHeight : 0;
+    }
+
+    /**
+     * Returns the whole image at a low resolution, at most 1024 pixels on
+     * each side, or null until it is ready.
+     * Draw it scaled to the full size of the image.
+     */
+    public Bitmap getBaseBitmap() {
+        return mReady ? mBaseBitmap : null;
+    }
+
+    /**
+     * Sets what part of the image is visible: the tiles of {@code region}
+     * are decoded, those around it prefetched, and tiles which left it are
+     * unpinned or their decode cancelled.
+     *
+     * @param region the visible region in pixels of the full image.
+     * @param scale  screen pixels per image pixel, e.g. 0.25 for a 4000 pixels
+     *               wide image in a 1000 pixels wide view. Decides the sample size.
+     */
+    public void setViewport(Rect region, float scale) {
+        if (!isReady()) {
+            return;
+        }
+        int sampleSize = sampleSizeFor(scale);
+        int left = Math.max(0, region.left);
+        int top = Math.max(0, region.top);
+        int right = Math.min(mWidth, region.right);
+        int bottom = Math.min(mHeight, region.bottom);
+        if (sampleSize >= mBaseSampleSize || right <= left || bottom <= top) {
+            // 基础图片已足够清晰, 不需要图块
+            mSampleSize = 0;
+            mLastCenterX = -1;
+            mLastCenterY = -1;
+            updateTiles();
+            return;
+        }
+        int span = TILE_SIZE * sampleSize;
+        int cols = (mWidth + span - 1) / span;
+        int rows = (mHeight + span - 1) / span;
+        // 平移的方向, 缩放后重新开始
+        int centerX = (left + right) / 2;
+        int centerY = (top + bottom) / 2;
+        int dx = 0;
+        int dy = 0;
+        if (sampleSize == mSampleSize && mLastCenterX != -1) {
+            dx = Integer.signum(centerX - mLastCenterX);
+            dy = Integer.signum(centerY - mLastCenterY);
+        }
+        mLastCenterX = centerX;
+        mLastCenterY = centerY;
+
+        mSampleSize = sampleSize;
+        mFirstCol = left / span;
+        mFirstRow = top / span;
+        mLastCol = (right - 1) / span;
+        mLastRow = (bottom - 1) / span;
+        mPrefetchFirstCol = Math.max(0, mFirstCol - PREFETCH_MARGIN - (dx < 0 ? PAN_LOOKAHEAD : 0));
+        mPrefetchLastCol = Math.min(cols - 1, mLastCol + PREFETCH_MARGIN + (dx > 0 ? PAN_LOOKAHEAD : 0));
+        mPrefetchFirstRow = Math.max(0, mFirstRow - PREFETCH_MARGIN - (dy < 0 ? PAN_LOOKAHEAD : 0));
+        mPrefetchLastRow = Math.min(rows - 1, mLastRow + PREFETCH_MARGIN + (dy > 0 ? PAN_LOOKAHEAD : 0));
+        updateTiles();
+    }
+
+    /**
+     * Adds the decoded tiles of the viewport to {@code out}, tiles which are
+     * still decoding are left out, the base bitmap shows there meanwhile.
+     * Call it from onDraw, the tiles stay valid until the next setViewport.
+     */
+    public void getTiles(List<Tile> out) {
+        for (Tile tile : mVisibleTiles.values()) {
+            if (tile.mBitmap != null) {
+                out.add(tile);
+            }
+        }
+    }
+
+    /**
+     * Cancels the pending decodes and unpins every tile, they stay in
+     * Memory-Cache for a reopen. The TiledImage can't be used afterwards.
+     */
+    public void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        // 下载仍在进行时不再等待它
+        mImageLoader.cancelLoadToDisk(mKey, mOnLoaded);
+        for (TileJob job : mPendingTiles.values()) {
+            cancel(job);
+        }
+        mPendingTiles.clear();
+        for (Tile tile : mVisibleTiles.values()) {
+            release(tile);
+        }
+        mVisibleTiles.clear();
+        mExecutor.execute(new Job(PRIORITY_OPEN) {
+            @Override
+            public void run() {
+                closeDecoder();
+                if (mBaseBitmap != null) {
+                    mImageLoader.releaseTile(mBaseBitmap);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the largest power of 2 which samples the image down to no less
+     * than {@code scale}, the tiles are then at least as sharp as the screen.
+     */
+    private static int sampleSizeFor(float scale) {
+        int sampleSize = 1;
+        while (scale > 0 && sampleSize * 2 * scale <= 1) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private boolean inViewport(int sampleSize, int col, int row) {
+        return mSampleSize != 0 && sampleSize == mSampleSize
+                && col >= mFirstCol && col <= mLastCol && row >= mFirstRow && row <= mLastRow;
+    }
+
+    private boolean inPrefetchRange(int sampleSize, int col, int row) {
+        return mSampleSize != 0 && sampleSize == mSampleSize
+                && col >= mPrefetchFirstCol && col <= mPrefetchLastCol
+                && row >= mPrefetchFirstRow && row <= mPrefetchLastRow;
+    }
+
+    /**
+     * Unpins the tiles which left the viewport and cancels the decodes which
+     * are out of the prefetch range, then pins the cached tiles of the
+     * viewport and queues the missing ones, visible tiles first.
+     */
+    private void updateTiles() {
+        for (Iterator<Tile> i = mVisibleTiles.values().iterator(); i.hasNext(); ) {
+            Tile tile = i.next();
+            if (!inViewport(tile.mSampleSize, tile.mCol, tile.mRow)) {
+                // 仍在Memory-Cache中, 可以被淘汰
+                release(tile);
+                i.remove();
+            }
+        }
+        for (Iterator<TileJob> i = mPendingTiles.values().iterator(); i.hasNext(); ) {
+            TileJob job = i.next();
+            if (!inPrefetchRange(job.mSampleSize, job.mCol, job.mRow)) {
+                cancel(job);
+                i.remove();
+            }
+        }
+        if (mSampleSize == 0) {
+            return;
+        }
+        for (int row = mFirstRow; row <= mLastRow; row++) {
+            for (int col = mFirstCol; col <= mLastCol; col++) {
+                String key = tileKey(mSampleSize, col, row);
+                if (mVisibleTiles.containsKey(key)) {
+                    continue;
+                }
+                Tile tile = new Tile(key, mSampleSize, col, row, tileRegion(mSampleSize, col, row),
+                        mImageLoader.getTileFromMemCache(key));
+                mVisibleTiles.put(key, tile);
+                if (tile.mBitmap == null) {
+                    // 解码完成前由基础图片代替, 见getTiles
+                    requestTile(key, col, row, PRIORITY_VISIBLE);
+                }
+            }
+        }
+        for (int row = mPrefetchFirstRow; row <= mPrefetchLastRow; row++) {
+            for (int col = mPrefetchFirstCol; col <= mPrefetchLastCol; col++) {
+                String key = tileKey(mSampleSize, col, row);
+                if (!mVisibleTiles.containsKey(key) && !mImageLoader.isTileCached(key)) {
+                    requestTile(key, col, row, PRIORITY_PREFETCH);
+                }
+            }
+        }
+    }
+
+    private String tileKey(int sampleSize, int col, int row) {
+        return mTileKeyPrefix + '_' + sampleSize + '_' + col + '_' + row;
+    }
+
+    private Rect tileRegion(int sampleSize, int col, int row) {
+        int span = TILE_SIZE * sampleSize;
+        return new Rect(col * span, row * span,
+                Math.min(mWidth, (col + 1) * span), Math.min(mHeight, (row + 1) * span));
+    }
+
+    private void requestTile(String key, int col, int row, int priority) {
+        TileJob job = mPendingTiles.get(key);
+        if (job != null) {
+            if (job.mPriority > priority && mExecutor.remove(job)) {
+                // 预取中的图块进入视口, 提前解码
+                job.mPriority = priority;
+                job.mSequence = sJobSequence.getAndIncrement();
+                mExecutor.execute(job);
+            }
+            return;
+        }
+        job = new TileJob(key, mSampleSize, col, row, tileRegion(mSampleSize, col, row), priority);
+        mPendingTiles.put(key, job);
+        mExecutor.execute(job);
+    }
+
+    private void cancel(TileJob job) {
+        job.mCancelled = true;
+        mExecutor.remove(job);
+    }
+
+    private void release(Tile tile) {
+        if (tile.mBitmap != null) {
+            mImageLoader.releaseTile(tile.mBitmap);
+        }
+    }
+
+    /**
+     * A tile was decoded, show it if it is still in the viewport.
+     */
+    private void onTileDecoded(TileJob job, Bitmap bitmap) {
+        if (mPendingTiles.get(job.mKey) == job) {
+            mPendingTiles.remove(job.mKey);
+        }
+        Tile tile = mVisibleTiles.get(job.mKey);
+        if (mClosed || bitmap == null || tile == null || tile.mBitmap != null) {
+            // 预取的图块留在Memory-Cache中
+            if (bitmap != null) {
+                mImageLoader.releaseTile(bitmap);
+            }
+            return;
+        }
+        mVisibleTiles.put(job.mKey, new Tile(job.mKey, job.mSampleSize, job.mCol, job.mRow, tile.mRegion, bitmap));
+        mCallback.onTilesChanged(this);
+    }
+
+    private abstract static class Job implements Runnable {
+        int mPriority;
+        long mSequence;
+
+        Job(int priority) {
+            mPriority = priority;
+            mSequence = sJobSequence.getAndIncrement();
+        }
+    }
+
+    private final class TileJob extends Job {
+        final String mKey;
+        final int mSampleSize;
+        final int mCol;
+        final int mRow;
+        final Rect mRegion;
+        volatile boolean mCancelled;
+
+        TileJob(String key, int sampleSize, int col, int row, Rect region, int priority) {
+            super(priority);
+            mKey = key;
+            mSampleSize = sampleSize;
+            mCol = col;
+            mRow = row;
+            mRegion = region;
+        }
+
+        @Override
+        public void run() {
+            if (mCancelled || mClosed || mRegionDecoder == null) {
+                return;
+            }
+            // 另一个TiledImage可能已解码过同一图块
+            Bitmap bitmap = mImageLoader.getTileFromMemCache(mKey);
+            if (bitmap == null) {
+                bitmap = decodeRegion(mRegion, mSampleSize);
+                if (bitmap != null) {
+                    mImageLoader.addTileToMemCache(mKey, bitmap);
+                }
+            }
+            final Bitmap decoded = bitmap;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onTileDecoded(TileJob.this, decoded);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package cn.edu.hebust.library;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * Partial edits of the DiskLruCache, which resumable downloads are kept in.
+ */
+public class DiskLruCachePartialTest {
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = File.createTempFile("DiskLruCachePartialTest", "");
+        assertTrue(mDirectory.delete());
+        assertTrue(mDirectory.mkdir());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        DiskLruCache.deleteContents(mDirectory);
+        mDirectory.delete();
+    }
+
+    @Test
+    public void partialSurvivesReopen_binaryJournal() throws Exception {
+        assertPartialSurvivesReopen(DiskLruCache.JournalFormat.BINARY, DiskLruCache.Eviction.LRU);
+    }
+
+    @Test
+    public void partialSurvivesReopen_frequencyEviction() throws Exception {
+        assertPartialSurvivesReopen(DiskLruCache.JournalFormat.TEXT, DiskLruCache.Eviction.GDSF);
+    }
+
+    private void assertPartialSurvivesReopen(DiskLruCache.JournalFormat format,
+                                             DiskLruCache.Eviction eviction) throws Exception {
+        DiskLruCache.Options options = new DiskLruCache.Options()
+                .setJournalFormat(format).setEviction(eviction);
+        DiskLruCache cache = DiskLruCache.open(mDirectory, 1, 2, 10000, options);
+        writePartial(cache, "k1", 300, "etag=a");
+        assertEquals(300 + "etag=a".length(), cache.size());
+        assertNull(cache.get("k1"));
+        cache.close();
+
+        cache = DiskLruCache.open(mDirectory, 1, 2, 10000, options);
+        assertEquals(300 + "etag=a".length(), cache.size());
+        DiskLruCache.Editor editor = cache.edit("k1");
+        assertEquals(300, editor.getPartialLength(0));
+        assertEquals("etag=a", editor.getPartialString(1));
+        OutputStream os = editor.newAppendingOutputStream(0);
+        os.write(new byte[200]);
+        os.close();
+        editor.set(1, "done");
+        editor.commit();
+
+        DiskLruCache.Snapshot snapshot = cache.get("k1");
+        assertNotNull(snapshot);
+        assertEquals("done", snapshot.getString(1));
+        snapshot.close();
+        assertEquals(500, new File(mDirectory, "k1.0").length());
+        assertEquals(500 + "done".length(), cache.size());
+        cache.close();
+    }
+
+    @Test
+    public void lruTextJournalHasNoPartialRecords() throws Exception {
+        DiskLruCache cache = DiskLruCache.open(mDirectory, 1, 2, 10000);
+        writePartial(cache, "k1", 300, "etag=a");
+
+        // resumable while the cache stays open
+        DiskLruCache.Editor editor = cache.edit("k1");
+        assertEquals(300, editor.getPartialLength(0));
+        editor.abortKeepingPartial();
+        cache.flush();
+        assertFalse(readJournal().contains("PARTIAL"));
+        cache.close();
+
+        cache = DiskLruCache.open(mDirectory, 1, 2, 10000);
+        assertEquals(0, cache.size());
+        assertFalse(new File(mDirectory, "k1.0.tmp").exists());
+        editor = cache.edit("k1");
+        assertEquals(0, editor.getPartialLength(0));
+        editor.abort();
+        cache.close();
+    }
+
+    @Test
+    public void lruTextJournalDropsPartialOfReadableEntry() throws Exception {
+        DiskLruCache cache = DiskLruCache.open(mDirectory, 1, 2, 10000);
+        DiskLruCache.Editor editor = cache.edit("k1");
+        editor.set(0, "old");
+        editor.set(1, "etag=a");
+        editor.commit();
+        writePartial(cache, "k1", 300, "etag=b");
+        cache.close();
+
+        cache = DiskLruCache.open(mDirectory, 1, 2, 10000);
+        DiskLruCache.Snapshot snapshot = cache.get("k1");
+        assertNotNull(snapshot);
+        assertEquals("old", snapshot.getString(0));
+        snapshot.close();
+        cache.close();
+    }
+
+    @Test
+    public void partialEvictedBeforeReadableEntries() throws Exception {
+        DiskLruCache.Options options = new DiskLruCache.Options()
+                .setJournalFormat(DiskLruCache.JournalFormat.BINARY);
+        DiskLruCache cache = DiskLruCache.open(mDirectory, 1, 2, 10000, options);
+        DiskLruCache.Editor editor = cache.edit("k1");
+        editor.set(0, "a");
+        editor.set(1, "b");
+        editor.commit();
+        writePartial(cache, "k2", 6000, "etag=a");
+        editor = cache.edit("k3");
+        OutputStream os = editor.newOutputStream(0);
+        os.write(new byte[5000]);
+        os.close();
+        editor.set(1, "c");
+        editor.commit();
+        cache.flush();
+
+        assertTrue(cache.size() <= 10000);
+        assertFalse(new File(mDirectory, "k2.0.tmp").exists());
+        assertNotNull(cache.get("k1"));
+        assertNotNull(cache.get("k3"));
+        cache.close();
+    }
+
+    @Test
+    public void truncatedCleanRecordLeavesEntryDirty() throws Exception {
+        DiskLruCache.Options options = new DiskLruCache.Options()
+                .setJournalFormat(DiskLruCache.JournalFormat.BINARY);
+        DiskLruCache cache = DiskLruCache.open(mDirectory, 1, 2, 10000, options);
+        writeClean(cache, "k1", "aaa", "b");
+        writeClean(cache, "k2", "ccccc", "dd");
+        cache.close();
+
+        // the process died while appending the last length of k2
+        File journal = new File(mDirectory, DiskLruCache.JOURNAL_FILE);
+        RandomAccessFile file = new RandomAccessFile(journal, "rw");
+        try {
+            file.setLength(file.length() - 1);
+        } finally {
+            file.close();
+        }
+
+        cache = DiskLruCache.open(mDirectory, 1, 2, 10000, options);
+        assertNull(cache.get("k2"));
+        DiskLruCache.Snapshot snapshot = cache.get("k1");
+        assertNotNull(snapshot);
+        assertEquals("aaa", snapshot.getString(0));
+        snapshot.close();
+        assertEquals(4, cache.size());
+        cache.close();
+    }
+
+    private static void writeClean(DiskLruCache cache, String key, String value0, String value1)
+            throws IOException {
+        DiskLruCache.Editor editor = cache.edit(key);
+        editor.set(0, value0);
+        editor.set(1, value1);
+        editor.commit();
+    }
+
+    private static void writePartial(DiskLruCache cache, String key, int length, String metadata)
+            throws IOException {
+        DiskLruCache.Editor editor = cache.edit(key);
+        OutputStream os = editor.newOutputStream(0);
+        os.write(new byte[length]);
+        os.close();
+        editor.set(1, metadata);
+        editor.abortKeepingPartial();
+    }
+
+    private String readJournal() throws IOException {
+        InputStreamReader reader = new InputStreamReader(
+                new FileInputStream(new File(mDirectory, DiskLruCache.JOURNAL_FILE)), "US-ASCII");
+        try {
+            return DiskLruCache.readFully(reader);
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package cn.edu.hebust.library;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reopening a DiskLruCache with a different shard count, which deletes the
+ * files of the previous layout.
+ */
+public class DiskLruCacheShardTest {
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = File.createTempFile("DiskLruCacheShardTest", "");
+        assertTrue(mDirectory.delete());
+        assertTrue(mDirectory.mkdir());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        DiskLruCache.deleteContents(mDirectory);
+        mDirectory.delete();
+    }
+
+    @Test
+    public void shardedToUnsharded() throws Exception {
+        DiskLruCache cache = DiskLruCache.open(mDirectory, 1, 2, 10000,
+                new DiskLruCache.Options().setShardCount(4));
+        for (int i = 0; i < 8; i++) {
+            writeClean(cache, "k" + i);
+        }
+        assertTrue(cache.size() > 0);
+        cache.close();
+        assertTrue(new File(mDirectory, DiskLruCache.SHARD_DIRECTORY_PREFIX + "4-0").exists());
+
+        cache = DiskLruCache.open(mDirectory, 1, 2, 10000, new DiskLruCache.Options());
+        assertEquals(0, cache.size());
+        assertNull(cache.get("k0"));
+        for (int i = 0; i < 4; i++) {
+            assertFalse(new File(mDirectory, DiskLruCache.SHARD_DIRECTORY_PREFIX + "4-" + i).exists());
+        }
+        cache.close();
+    }
+
+    @Test
+    public void unshardedToSharded() throws Exception {
+        DiskLruCache cache = DiskLruCache.open(mDirectory, 1, 2, 10000);
+        writeClean(cache, "k1");
+        cache.close();
+        assertTrue(new File(mDirectory, "k1.0").exists());
+
+        cache = DiskLruCache.open(mDirectory, 1, 2, 10000, new DiskLruCache.Options().setShardCount(4));
+        assertEquals(0, cache.size());
+        assertNull(cache.get("k1"));
+        assertFalse(new File(mDirectory, "k1.0").exists());
+        assertFalse(new File(mDirectory, DiskLruCache.JOURNAL_FILE).exists());
+        cache.close();
+    }
+
+    private static void writeClean(DiskLruCache cache, String key) throws IOException {
+        DiskLruCache.Editor editor = cache.edit(key);
+        editor.set(0, "value of " + key);
+        editor.set(1, "metadata");
+        editor.commit();
+    }
+}
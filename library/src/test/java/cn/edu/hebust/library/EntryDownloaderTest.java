@@ -0,0 +1,265 @@
+package cn.edu.hebust.library;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Downloads into Disk-Cache entries against a local server which serves
+ * byte ranges and can cut a response short.
+ */
+public class EntryDownloaderTest {
+
+    private static final String KEY = "image";
+    private static final int IMAGE_SIZE = 100000;
+    private static final int CUT_SIZE = 40000;
+
+    private File mDirectory;
+    private DiskLruCache mCache;
+    private HttpServer mServer;
+    private ExecutorService mServerExecutor;
+    private HttpUrlFetcher mFetcher;
+    private String mUri;
+    private final CountDownLatch mStop = new CountDownLatch(1);
+
+    // 服务器上的图片, 测试中可以改变
+    private volatile byte[] mImage;
+    private volatile String mETag = "\"v1\"";
+    // 完整响应只发送这么多字节后停住, -1不截断
+    private volatile int mCutAt = -1;
+    private volatile boolean mRangeNotSatisfiable;
+    private volatile String mLastRange;
+    private volatile String mLastIfRange;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = File.createTempFile("EntryDownloaderTest", "");
+        assertTrue(mDirectory.delete());
+        assertTrue(mDirectory.mkdir());
+        mCache = DiskLruCache.open(mDirectory, 1, 2, 10 * IMAGE_SIZE,
+                new DiskLruCache.Options().setJournalFormat(DiskLruCache.JournalFormat.BINARY));
+        mImage = randomBytes(IMAGE_SIZE, 1);
+
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/image", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        mServerExecutor = Executors.newCachedThreadPool();
+        mServer.setExecutor(mServerExecutor);
+        mServer.start();
+        mUri = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/image";
+        mFetcher = new HttpUrlFetcher(1000, 300, 2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mStop.countDown();
+        mServer.stop(0);
+        mServerExecutor.shutdownNow();
+        mCache.delete();
+        mDirectory.delete();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        byte[] image = mImage;
+        mLastRange = exchange.getRequestHeaders().getFirst("Range");
+        mLastIfRange = exchange.getRequestHeaders().getFirst("If-Range");
+        exchange.getResponseHeaders().add("ETag", mETag);
+        exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+        OutputStream body = exchange.getResponseBody();
+        try {
+            if (mLastRange != null && mETag.equals(mLastIfRange)) {
+                if (mRangeNotSatisfiable) {
+                    exchange.sendResponseHeaders(EntryDownloader.HTTP_RANGE_NOT_SATISFIABLE, -1);
+                    return;
+                }
+                int start = Integer.parseInt(mLastRange.substring("bytes=".length(), mLastRange.length() - 1));
+                exchange.getResponseHeaders().add("Content-Range",
+                        "bytes " + start + "-" + (image.length - 1) + "/" + image.length);
+                exchange.sendResponseHeaders(206, image.length - start);
+                body.write(image, start, image.length - start);
+                return;
+            }
+            exchange.sendResponseHeaders(200, image.length);
+            if (mCutAt < 0) {
+                body.write(image);
+                return;
+            }
+            body.write(image, 0, mCutAt);
+            body.flush();
+            // 停住直到客户端读超时
+            try {
+                mStop.await(2, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    @Test
+    public void completeDownload() throws Exception {
+        assertTrue(download());
+        assertArrayEquals(mImage, readEntry());
+        assertNull(mLastRange);
+        ImageMetadata metadata = readMetadata();
+        assertEquals(IMAGE_SIZE, metadata.getByteCount());
+        assertEquals("\"v1\"", metadata.getETag());
+    }
+
+    @Test
+    public void interruptedDownloadKeepsPartial() throws Exception {
+        mCutAt = CUT_SIZE;
+        assertFalse(download());
+        assertNull(mCache.get(KEY));
+        assertEquals(2, mFetcher.availableRequests(mUri));
+
+        DiskLruCache.Editor editor = mCache.edit(KEY);
+        assertEquals(CUT_SIZE, editor.getPartialLength(ImageLoader.DISK_CACHE_INDEX));
+        ImageMetadata partial = ImageMetadata.decode(
+                editor.getPartialString(ImageLoader.DISK_CACHE_METADATA_INDEX));
+        assertEquals("\"v1\"", partial.getETag());
+        editor.abortKeepingPartial();
+    }
+
+    @Test
+    public void resumeWithRange() throws Exception {
+        mCutAt = CUT_SIZE;
+        assertFalse(download());
+        mCutAt = -1;
+
+        assertTrue(download());
+        assertEquals("bytes=" + CUT_SIZE + "-", mLastRange);
+        assertEquals("\"v1\"", mLastIfRange);
+        assertArrayEquals(mImage, readEntry());
+        assertEquals(IMAGE_SIZE, readMetadata().getByteCount());
+    }
+
+    @Test
+    public void changedImageDownloadedAgain() throws Exception {
+        mCutAt = CUT_SIZE;
+        assertFalse(download());
+        mCutAt = -1;
+        mImage = randomBytes(IMAGE_SIZE / 2, 2);
+        mETag = "\"v2\"";
+
+        // If-Range不匹配, 服务器返回完整的200
+        assertTrue(download());
+        assertEquals("\"v1\"", mLastIfRange);
+        assertArrayEquals(mImage, readEntry());
+        assertEquals("\"v2\"", readMetadata().getETag());
+    }
+
+    @Test
+    public void rangeNotSatisfiableDiscardsPartial() throws Exception {
+        mCutAt = CUT_SIZE;
+        assertFalse(download());
+        mRangeNotSatisfiable = true;
+
+        assertFalse(download());
+        DiskLruCache.Editor editor = mCache.edit(KEY);
+        assertEquals(0, editor.getPartialLength(ImageLoader.DISK_CACHE_INDEX));
+        editor.abort();
+    }
+
+    @Test
+    public void unreadablePartialReleasesEditor() throws Exception {
+        mCutAt = CUT_SIZE;
+        assertFalse(download());
+        DiskLruCache.Editor editor = mCache.edit(KEY);
+        editor.abortKeepingPartial();
+        assertTrue(new File(mDirectory, KEY + ".1.tmp").delete());
+
+        assertFalse(download());
+        editor = mCache.edit(KEY);
+        assertNotNull(editor);
+        editor.abort();
+    }
+
+    @Test
+    public void listenerEndsWithInterruptedBody() throws Exception {
+        mCutAt = CUT_SIZE;
+        final long[] seen = new long[3];
+        EntryDownloader.BodyListener listener = new EntryDownloader.BodyListener() {
+            @Override
+            public void begin(long contentLength) {
+                seen[0] = contentLength;
+            }
+
+            @Override
+            public void onBytes(byte[] buf, int count) {
+                seen[1] += count;
+            }
+
+            @Override
+            public void end() {
+                seen[2]++;
+            }
+        };
+        DiskLruCache.Editor editor = mCache.edit(KEY);
+        assertFalse(EntryDownloader.download(mFetcher, mUri, editor, listener));
+        assertEquals(IMAGE_SIZE, seen[0]);
+        assertEquals(CUT_SIZE, seen[1]);
+        assertEquals(1, seen[2]);
+    }
+
+    private boolean download() throws IOException {
+        DiskLruCache.Editor editor = mCache.edit(KEY);
+        assertNotNull(editor);
+        return EntryDownloader.download(mFetcher, mUri, editor, null);
+    }
+
+    private byte[] readEntry() throws IOException {
+        DiskLruCache.Snapshot snapshot = mCache.get(KEY);
+        assertNotNull(snapshot);
+        try {
+            InputStream in = snapshot.getInputStream(ImageLoader.DISK_CACHE_INDEX);
+            byte[] data = new byte[(int) new File(mDirectory, KEY + ".0").length()];
+            int count = 0;
+            int read;
+            while (count < data.length && (read = in.read(data, count, data.length - count)) != -1) {
+                count += read;
+            }
+            return data;
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    private ImageMetadata readMetadata() throws IOException {
+        DiskLruCache.Snapshot snapshot = mCache.get(KEY);
+        assertNotNull(snapshot);
+        try {
+            return ImageMetadata.decode(snapshot.getString(ImageLoader.DISK_CACHE_METADATA_INDEX));
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    private static byte[] randomBytes(int count, long seed) {
+        byte[] bytes = new byte[count];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
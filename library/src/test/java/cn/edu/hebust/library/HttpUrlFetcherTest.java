@@ -0,0 +1,183 @@
+package cn.edu.hebust.library;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Connection reuse, the per-host request limit and error responses of the
+ * HttpUrlFetcher against a local server.
+ */
+public class HttpUrlFetcherTest {
+
+    private static final int MAX_REQUESTS_PER_HOST = 3;
+    private static final int IMAGE_SIZE = 20000;
+
+    private HttpServer mServer;
+    private ExecutorService mServerExecutor;
+    private HttpUrlFetcher mFetcher;
+    private String mBase;
+    private final CountDownLatch mStop = new CountDownLatch(1);
+
+    // 客户端连接的端口, 每个端口是一个连接
+    private final Set<Integer> mPorts = Collections.synchronizedSet(new HashSet<Integer>());
+    private final AtomicInteger mRunning = new AtomicInteger();
+    private final AtomicInteger mMaxRunning = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 50);
+        mServer.createContext("/image", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serveImage(exchange);
+            }
+        });
+        mServer.createContext("/missing", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = "not found".getBytes("US-ASCII");
+                exchange.sendResponseHeaders(404, body.length);
+                exchange.getResponseBody().write(body);
+                exchange.close();
+            }
+        });
+        mServer.createContext("/stall", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                // 停住直到客户端读超时
+                try {
+                    mStop.await(2, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                exchange.close();
+            }
+        });
+        mServerExecutor = Executors.newFixedThreadPool(16);
+        mServer.setExecutor(mServerExecutor);
+        mServer.start();
+        mBase = "http://127.0.0.1:" + mServer.getAddress().getPort();
+        mFetcher = new HttpUrlFetcher(1000, 300, MAX_REQUESTS_PER_HOST);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mStop.countDown();
+        mServer.stop(0);
+        mServerExecutor.shutdownNow();
+    }
+
+    private void serveImage(HttpExchange exchange) throws IOException {
+        mPorts.add(exchange.getRemoteAddress().getPort());
+        int running = mRunning.incrementAndGet();
+        int max;
+        while ((max = mMaxRunning.get()) < running && !mMaxRunning.compareAndSet(max, running)) {
+        }
+        try {
+            Thread.sleep(20);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mRunning.decrementAndGet();
+        exchange.getResponseHeaders().add("ETag", "\"v1\"");
+        exchange.sendResponseHeaders(200, IMAGE_SIZE);
+        exchange.getResponseBody().write(new byte[IMAGE_SIZE]);
+        exchange.close();
+    }
+
+    @Test
+    public void connectionIsReused() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            NetworkFetcher.Response response = mFetcher.fetch(mBase + "/image?" + i, null);
+            assertEquals(200, response.getCode());
+            assertEquals("\"v1\"", response.getHeader("ETag"));
+            assertEquals(IMAGE_SIZE, response.getContentLength());
+            // 只读一部分, 关闭时读完剩余的部分
+            InputStream body = response.getBody();
+            assertTrue(body.read(new byte[100]) > 0);
+            body.close();
+            response.close();
+        }
+        assertEquals(1, mPorts.size());
+        assertEquals(MAX_REQUESTS_PER_HOST, mFetcher.availableRequests(mBase));
+    }
+
+    @Test
+    public void requestsPerHostAreLimited() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(10);
+        try {
+            List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+            for (int i = 0; i < 60; i++) {
+                final String uri = mBase + "/image?p" + i;
+                futures.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        NetworkFetcher.Response response = mFetcher.fetch(uri, null);
+                        try {
+                            return response.getCode();
+                        } finally {
+                            response.close();
+                        }
+                    }
+                }));
+            }
+            for (Future<Integer> future : futures) {
+                assertEquals(200, (int) future.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue("max running " + mMaxRunning, mMaxRunning.get() <= MAX_REQUESTS_PER_HOST);
+        assertTrue("connections " + mPorts.size(), mPorts.size() <= MAX_REQUESTS_PER_HOST);
+        assertEquals(MAX_REQUESTS_PER_HOST, mFetcher.availableRequests(mBase));
+    }
+
+    @Test
+    public void errorBodyIsReadable() throws Exception {
+        NetworkFetcher.Response response = mFetcher.fetch(mBase + "/missing", null);
+        try {
+            assertEquals(404, response.getCode());
+            BufferedReader reader = new BufferedReader(new InputStreamReader(response.getBody(), "US-ASCII"));
+            assertEquals("not found", reader.readLine());
+        } finally {
+            response.close();
+        }
+        assertEquals(MAX_REQUESTS_PER_HOST, mFetcher.availableRequests(mBase));
+    }
+
+    @Test
+    public void timeoutReleasesPermit() throws Exception {
+        try {
+            mFetcher.fetch(mBase + "/stall", null);
+            fail("no timeout");
+        } catch (SocketTimeoutException expected) {
+        }
+        assertEquals(MAX_REQUESTS_PER_HOST, mFetcher.availableRequests(mBase));
+    }
+}
@@ -0,0 +1,87 @@
+package cn.edu.hebust.library;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Pinning entries of a MemoryCache with each eviction policy.
+ */
+public class MemoryCacheTest {
+
+    @Test
+    public void pinnedEntriesAreNotEvicted() throws Exception {
+        for (EvictionPolicy.Type type : EvictionPolicy.Type.values()) {
+            MemoryCache<String, String> cache = newCache(type, 3);
+            cache.put("a", "A");
+            assertEquals("A", cache.pin("a"));
+            assertEquals(0, cache.size());
+            for (int i = 0; i < 10; i++) {
+                cache.put("k" + i, "V");
+            }
+            assertEquals(3, cache.size());
+            assertNull(cache.peek("a"));
+
+            // 放回后可能被淘汰, 但缓存仍不超过最大值
+            cache.unpin("a", "A");
+            assertEquals(type.toString(), 3, cache.size());
+        }
+    }
+
+    @Test
+    public void evictAllKeepsPinnedKeys() throws Exception {
+        MemoryCache<String, String> cache = newCache(EvictionPolicy.Type.LRU, 3);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        cache.pin("a");
+        cache.evictAll();
+        assertEquals(0, cache.size());
+        assertNull(cache.peek("b"));
+
+        cache.unpin("a", "A");
+        assertEquals("A", cache.peek("a"));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void hitsWhilePinnedProtectEntry() throws Exception {
+        MemoryCache<String, String> cache = newCache(EvictionPolicy.Type.SLRU, 100);
+        cache.put("shown", "S");
+        cache.pin("shown");
+        // 显示期间的访问计入淘汰策略, 进入protected段
+        assertNull(cache.get("shown"));
+        cache.unpin("shown", "S");
+        // 一次滚动中的大量新图片
+        for (int i = 0; i < 1000; i++) {
+            cache.put("scan" + i, "V");
+        }
+        assertEquals("S", cache.peek("shown"));
+    }
+
+    @Test
+    public void unpinAfterRemoveIsPut() throws Exception {
+        MemoryCache<String, String> cache = newCache(EvictionPolicy.Type.SLRU, 3);
+        cache.put("a", "A");
+        cache.pin("a");
+        assertNull(cache.remove("a"));
+        cache.unpin("a", "A");
+        assertEquals("A", cache.peek("a"));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void putPinned() throws Exception {
+        MemoryCache<String, String> cache = newCache(EvictionPolicy.Type.TINY_LFU, 2);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        cache.putPinned("c", "C");
+        assertEquals(2, cache.size());
+        assertNull(cache.peek("c"));
+        cache.unpin("c", "C");
+        assertEquals(2, cache.size());
+    }
+
+    private static MemoryCache<String, String> newCache(EvictionPolicy.Type type, int maxSize) {
+        return new MemoryCache<String, String>(maxSize, EvictionPolicy.<String>create(type));
+    }
+}